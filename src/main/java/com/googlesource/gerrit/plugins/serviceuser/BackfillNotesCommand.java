@@ -0,0 +1,79 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.serviceuser;
+
+import com.google.gerrit.common.data.GlobalCapability;
+import com.google.gerrit.extensions.annotations.RequiresCapability;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.sshd.CommandMetaData;
+import com.google.gerrit.sshd.SshCommand;
+import com.google.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+
+@RequiresCapability(GlobalCapability.ADMINISTRATE_SERVER)
+@CommandMetaData(
+    name = "backfill-notes",
+    description = "Create Git notes for existing service user commits")
+class BackfillNotesCommand extends SshCommand {
+
+  @Argument(index = 0, multiValued = true, metaVar = "PROJECT", usage = "projects to backfill")
+  private List<String> projectNames = new ArrayList<>();
+
+  @Option(name = "--all", usage = "backfill all projects")
+  private boolean all;
+
+  @Option(name = "--threads", metaVar = "N", usage = "number of projects processed in parallel")
+  private int threads = 2;
+
+  @Inject private NotesBackfill notesBackfill;
+
+  @Inject private ProjectCache projectCache;
+
+  @Override
+  protected void run() throws UnloggedFailure {
+    List<Project.NameKey> projects = new ArrayList<>();
+    if (all) {
+      projects.addAll(projectCache.all());
+    } else {
+      for (String name : projectNames) {
+        Project.NameKey project = new Project.NameKey(name);
+        if (projectCache.get(project) == null) {
+          throw die(String.format("project %s not found", name));
+        }
+        projects.add(project);
+      }
+    }
+    if (projects.isEmpty()) {
+      throw die("no projects specified, use --all to backfill all projects");
+    }
+    if (threads < 1) {
+      throw die("--threads must be at least 1");
+    }
+
+    notesBackfill.run(
+        projects,
+        threads,
+        msg -> {
+          synchronized (stdout) {
+            stdout.println(msg);
+            stdout.flush();
+          }
+        });
+  }
+}
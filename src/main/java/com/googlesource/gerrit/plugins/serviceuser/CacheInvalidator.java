@@ -0,0 +1,65 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.serviceuser;
+
+import com.google.gerrit.extensions.events.AccountIndexedListener;
+import com.google.gerrit.extensions.events.GroupIndexedListener;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.AccountGroup;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Evicts the cached owner data and push eligibility when accounts or groups are reindexed after an
+ * update. When a service user account is reindexed, e.g. because its email changed, the emails
+ * that are known to not belong to a service user are evicted as well.
+ */
+@Singleton
+class CacheInvalidator implements AccountIndexedListener, GroupIndexedListener {
+  private final OwnerCache ownerCache;
+  private final PushEligibility pushEligibility;
+  private final ServiceUserRegistry registry;
+  private final NonServiceUserCache nonServiceUsers;
+
+  @Inject
+  CacheInvalidator(
+      OwnerCache ownerCache,
+      PushEligibility pushEligibility,
+      ServiceUserRegistry registry,
+      NonServiceUserCache nonServiceUsers) {
+    this.ownerCache = ownerCache;
+    this.pushEligibility = pushEligibility;
+    this.registry = registry;
+    this.nonServiceUsers = nonServiceUsers;
+  }
+
+  @Override
+  public void onAccountIndexed(int id) {
+    Account.Id accountId = new Account.Id(id);
+    // the push eligibility is computed from the owner members, hence evict them first
+    ownerCache.evictAccount(accountId);
+    pushEligibility.evictAccount(accountId);
+    if (registry.get().isServiceUser(id)) {
+      nonServiceUsers.invalidateAll();
+    }
+  }
+
+  @Override
+  public void onGroupIndexed(String uuid) {
+    AccountGroup.UUID groupUuid = new AccountGroup.UUID(uuid);
+    ownerCache.evictGroup(groupUuid);
+    pushEligibility.evictGroup(groupUuid);
+  }
+}
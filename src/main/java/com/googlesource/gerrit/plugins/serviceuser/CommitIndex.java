@@ -0,0 +1,504 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.serviceuser;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.gerrit.extensions.annotations.PluginData;
+import com.google.gerrit.extensions.restapi.Url;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index of the commits that were annotated by service user notes, by project.
+ *
+ * <p>The index of a project is kept in the {@code commits} folder in the data directory of the
+ * plugin. The {@code .users} file lists the usernames of the service users, one per line, and the
+ * line number is the ordinal by which the {@code .idx} file refers to a service user. After a
+ * header of magic, version and record count the {@code .idx} file contains two sections of
+ * records, each consisting of the raw commit ID and the ordinal of the service user. The first
+ * section is sorted by commit ID, the second by ordinal and commit ID, so that both the service
+ * user of a commit and the commits of a service user are found by binary search. The {@code .idx}
+ * file is read through a memory-mapped buffer.
+ *
+ * <p>The {@link NotesWriter} adds the commits once their notes were committed. Added commits are
+ * appended to the {@code .log} file, whose records have the same format and are kept in memory,
+ * where they take precedence over the records of the {@code .idx} file. Once the log grows beyond
+ * a fraction of the index, both are merged into a new {@code .idx} file, which atomically replaces
+ * the old one, so that the cost of rewriting the index is spread over many added commits. Commits
+ * of different projects are added concurrently.
+ */
+@Singleton
+class CommitIndex {
+  private static final Logger log = LoggerFactory.getLogger(CommitIndex.class);
+
+  private static final int MAGIC = 0x53554349; // "SUCI"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 12;
+  private static final int ORDINAL_OFFSET = Constants.OBJECT_ID_LENGTH;
+  private static final int RECORD_SIZE = ORDINAL_OFFSET + 4;
+
+  /** Minimum number of log records before the log is merged into the index file. */
+  private static final int MIN_MERGE_RECORDS = 4096;
+
+  private final Path dir;
+
+  /** Loaded indexes by project, replaced under the lock of the project. */
+  private final ConcurrentMap<Project.NameKey, Snapshot> snapshots = new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<Project.NameKey, Object> locks = new ConcurrentHashMap<>();
+
+  @Inject
+  CommitIndex(@PluginData Path pluginData) {
+    this.dir = pluginData.resolve("commits");
+  }
+
+  /**
+   * Returns the username of the service user that made the commit, {@code null} if the commit is
+   * not indexed.
+   */
+  String get(Project.NameKey project, AnyObjectId commit) throws IOException {
+    return getSnapshot(project).get(commit);
+  }
+
+  /**
+   * Returns the indexed commits of the service user, sorted by commit ID.
+   *
+   * @param start number of commits to skip
+   * @param limit maximum number of commits to return, all if not positive
+   */
+  List<ObjectId> getCommits(Project.NameKey project, String username, int start, int limit)
+      throws IOException {
+    return getSnapshot(project).getCommits(username, start, limit);
+  }
+
+  /** Adds the commits with the usernames of the service users that made them. */
+  void add(Project.NameKey project, Map<ObjectId, String> commits) throws IOException {
+    if (commits.isEmpty()) {
+      return;
+    }
+    synchronized (lock(project)) {
+      Snapshot old = getSnapshot(project);
+      List<String> users = new ArrayList<>(old.users);
+      Map<String, Integer> ordinals = new HashMap<>(old.ordinals);
+      TreeMap<ObjectId, Integer> added = new TreeMap<>();
+      for (Map.Entry<ObjectId, String> e : commits.entrySet()) {
+        Integer ordinal = ordinals.get(e.getValue());
+        if (ordinal == null) {
+          ordinal = users.size();
+          users.add(e.getValue());
+          ordinals.put(e.getValue(), ordinal);
+        }
+        added.put(e.getKey().copy(), ordinal);
+      }
+
+      Files.createDirectories(dir);
+      if (users.size() > old.users.size()) {
+        // the new usernames must be known before the index refers to them
+        Path tmp = getFile(project, ".users.tmp");
+        Files.write(tmp, users, UTF_8);
+        Files.move(tmp, getFile(project, ".users"), ATOMIC_MOVE, REPLACE_EXISTING);
+      }
+
+      TreeMap<ObjectId, Integer> delta = new TreeMap<>(old.delta);
+      delta.putAll(added);
+      if (delta.size() > Math.max(MIN_MERGE_RECORDS, old.count / 8)) {
+        Snapshot merged = write(project, old, delta, users);
+        // if this is not reached, the log is merged again, which yields the same records
+        Files.deleteIfExists(getFile(project, ".log"));
+        snapshots.put(project, merged);
+      } else {
+        append(project, added);
+        snapshots.put(project, new Snapshot(old.buf, old.count, users, delta));
+      }
+    }
+  }
+
+  private Object lock(Project.NameKey project) {
+    return locks.computeIfAbsent(project, p -> new Object());
+  }
+
+  private Snapshot getSnapshot(Project.NameKey project) throws IOException {
+    Snapshot s = snapshots.get(project);
+    if (s == null) {
+      synchronized (lock(project)) {
+        s = snapshots.get(project);
+        if (s == null) {
+          s = load(project);
+          snapshots.put(project, s);
+        }
+      }
+    }
+    return s;
+  }
+
+  private Snapshot load(Project.NameKey project) throws IOException {
+    Path idx = getFile(project, ".idx");
+    Path usersFile = getFile(project, ".users");
+    if (!Files.exists(usersFile)) {
+      if (Files.exists(idx)) {
+        log.warn("Ignoring service user commit index {} without users", idx);
+      }
+      return Snapshot.EMPTY;
+    }
+    List<String> users = Files.readAllLines(usersFile, UTF_8);
+    SortedMap<ObjectId, Integer> delta = readLog(project, users.size());
+    if (Files.exists(idx)) {
+      try (FileChannel ch = FileChannel.open(idx, READ)) {
+        long size = ch.size();
+        if (size >= HEADER_SIZE && size <= Integer.MAX_VALUE) {
+          MappedByteBuffer buf = ch.map(MapMode.READ_ONLY, 0, size);
+          int count = buf.getInt(8);
+          if (buf.getInt(0) == MAGIC
+              && buf.getInt(4) == VERSION
+              && size == HEADER_SIZE + 2L * count * RECORD_SIZE) {
+            return new Snapshot(buf, count, users, delta);
+          }
+        }
+      }
+      log.warn("Ignoring invalid service user commit index {}", idx);
+    }
+    return new Snapshot(Snapshot.EMPTY.buf, 0, users, delta);
+  }
+
+  /**
+   * Reads the records of the log, a later record of a commit replaces an earlier one. A record
+   * that was only partially written, e.g. because the server was stopped, is cut off, so that
+   * later records are appended at a record boundary.
+   */
+  private SortedMap<ObjectId, Integer> readLog(Project.NameKey project, int users)
+      throws IOException {
+    TreeMap<ObjectId, Integer> delta = new TreeMap<>();
+    Path logFile = getFile(project, ".log");
+    if (!Files.exists(logFile)) {
+      return delta;
+    }
+    byte[] bytes = Files.readAllBytes(logFile);
+    int length = bytes.length - bytes.length % RECORD_SIZE;
+    if (length < bytes.length) {
+      log.warn("Truncating partially written service user commit index log {}", logFile);
+      try (FileChannel ch = FileChannel.open(logFile, WRITE)) {
+        ch.truncate(length);
+      }
+    }
+    ByteBuffer buf = ByteBuffer.wrap(bytes);
+    for (int pos = 0; pos < length; pos += RECORD_SIZE) {
+      int ordinal = buf.getInt(pos + ORDINAL_OFFSET);
+      if (ordinal >= 0 && ordinal < users) {
+        delta.put(ObjectId.fromRaw(bytes, pos), ordinal);
+      }
+    }
+    return delta;
+  }
+
+  /** Appends the records of the added commits to the log. */
+  private void append(Project.NameKey project, SortedMap<ObjectId, Integer> added)
+      throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(added.size() * RECORD_SIZE);
+    byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+    for (Map.Entry<ObjectId, Integer> e : added.entrySet()) {
+      e.getKey().copyRawTo(raw, 0);
+      buf.put(raw).putInt(e.getValue());
+    }
+    buf.flip();
+    try (FileChannel ch = FileChannel.open(getFile(project, ".log"), CREATE, WRITE, APPEND)) {
+      while (buf.hasRemaining()) {
+        ch.write(buf);
+      }
+      ch.force(false);
+    }
+  }
+
+  /** Writes the merged records of the old index and the added commits into a new index file. */
+  private Snapshot write(
+      Project.NameKey project, Snapshot old, SortedMap<ObjectId, Integer> added, List<String> users)
+      throws IOException {
+    int count = old.count + added.size();
+    for (ObjectId id : added.keySet()) {
+      if (old.find(key(id)) >= 0) {
+        count--;
+      }
+    }
+    long size = HEADER_SIZE + 2L * count * RECORD_SIZE;
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException(
+          String.format("Service user commit index of %s is too large", project.get()));
+    }
+
+    Path tmp = getFile(project, ".idx.tmp");
+    MappedByteBuffer out;
+    try (FileChannel ch = FileChannel.open(tmp, CREATE, TRUNCATE_EXISTING, READ, WRITE)) {
+      out = ch.map(MapMode.READ_WRITE, 0, size);
+    }
+    out.putInt(0, MAGIC);
+    out.putInt(4, VERSION);
+    out.putInt(8, count);
+
+    // first section, merge by commit ID; an added commit replaces an existing record
+    int[] perUser = new int[users.size()];
+    int i = 0;
+    int n = 0;
+    for (Map.Entry<ObjectId, Integer> e : added.entrySet()) {
+      int[] key = key(e.getKey());
+      while (i < old.count) {
+        int c = compare(old.buf, old.byId(i), key);
+        if (c > 0) {
+          break;
+        }
+        if (c < 0) {
+          perUser[copy(old.buf, old.byId(i), out, HEADER_SIZE + n++ * RECORD_SIZE)]++;
+        }
+        i++;
+      }
+      int pos = HEADER_SIZE + n++ * RECORD_SIZE;
+      for (int k = 0; k < key.length; k++) {
+        out.putInt(pos + 4 * k, key[k]);
+      }
+      out.putInt(pos + ORDINAL_OFFSET, e.getValue());
+      perUser[e.getValue()]++;
+    }
+    for (; i < old.count; i++) {
+      perUser[copy(old.buf, old.byId(i), out, HEADER_SIZE + n++ * RECORD_SIZE)]++;
+    }
+
+    // second section, the records of the first section are already sorted by commit ID
+    // within each ordinal, hence they only need to be grouped by ordinal
+    int[] next = new int[users.size()];
+    for (int o = 1; o < next.length; o++) {
+      next[o] = next[o - 1] + perUser[o - 1];
+    }
+    for (int r = 0; r < count; r++) {
+      int pos = HEADER_SIZE + r * RECORD_SIZE;
+      int ordinal = out.getInt(pos + ORDINAL_OFFSET);
+      copy(out, pos, out, HEADER_SIZE + (count + next[ordinal]++) * RECORD_SIZE);
+    }
+
+    out.force();
+    Files.move(tmp, getFile(project, ".idx"), ATOMIC_MOVE, REPLACE_EXISTING);
+    return new Snapshot(out, count, users, ImmutableSortedMap.of());
+  }
+
+  private Path getFile(Project.NameKey project, String suffix) {
+    return dir.resolve(Url.encode(project.get()) + suffix);
+  }
+
+  /** Copies the record and returns its ordinal. */
+  private static int copy(ByteBuffer src, int srcPos, ByteBuffer dst, int dstPos) {
+    for (int k = 0; k < RECORD_SIZE; k += 4) {
+      dst.putInt(dstPos + k, src.getInt(srcPos + k));
+    }
+    return src.getInt(srcPos + ORDINAL_OFFSET);
+  }
+
+  /** Returns the raw commit ID as the big-endian words in which it is stored. */
+  private static int[] key(AnyObjectId id) {
+    byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+    id.copyRawTo(raw, 0);
+    ByteBuffer b = ByteBuffer.wrap(raw);
+    int[] key = new int[Constants.OBJECT_ID_LENGTH / 4];
+    for (int k = 0; k < key.length; k++) {
+      key[k] = b.getInt();
+    }
+    return key;
+  }
+
+  /** Compares the commit ID of the record with the key in the order of {@link ObjectId}s. */
+  private static int compare(ByteBuffer buf, int pos, int[] key) {
+    for (int k = 0; k < key.length; k++) {
+      int c = Integer.compareUnsigned(buf.getInt(pos + 4 * k), key[k]);
+      if (c != 0) {
+        return c;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Immutable view of the index file and the log of a project. The buffer is only accessed by
+   * absolute reads, so that it can be shared between threads.
+   */
+  private static class Snapshot {
+    static final Snapshot EMPTY =
+        new Snapshot(
+            ByteBuffer.allocate(HEADER_SIZE), 0, ImmutableList.of(), ImmutableSortedMap.of());
+
+    final ByteBuffer buf;
+    final int count;
+    final List<String> users;
+    final Map<String, Integer> ordinals = new HashMap<>();
+
+    /** Ordinals of the commits in the log, which replace the records of the index file. */
+    final ImmutableSortedMap<ObjectId, Integer> delta;
+
+    Snapshot(
+        ByteBuffer buf, int count, List<String> users, SortedMap<ObjectId, Integer> delta) {
+      this.buf = buf;
+      this.count = count;
+      this.users = ImmutableList.copyOf(users);
+      this.delta = ImmutableSortedMap.copyOfSorted(delta);
+      for (int o = 0; o < users.size(); o++) {
+        ordinals.put(users.get(o), o);
+      }
+    }
+
+    String get(AnyObjectId commit) {
+      Integer ordinal = delta.get(commit);
+      if (ordinal == null) {
+        int i = find(key(commit));
+        if (i < 0) {
+          return null;
+        }
+        ordinal = buf.getInt(byId(i) + ORDINAL_OFFSET);
+      }
+      return ordinal < users.size() ? users.get(ordinal) : null;
+    }
+
+    List<ObjectId> getCommits(String username, int start, int limit) {
+      Integer ordinal = ordinals.get(username);
+      if (ordinal == null) {
+        return ImmutableList.of();
+      }
+      int from = lowerBound(ordinal);
+      int to = lowerBound(ordinal + 1);
+      if (delta.isEmpty()) {
+        from = (int) Math.min(to, (long) from + Math.max(start, 0));
+        if (limit > 0) {
+          to = (int) Math.min(to, (long) from + limit);
+        }
+        List<ObjectId> commits = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+          commits.add(idAt(byUser(i)));
+        }
+        return commits;
+      }
+
+      // merge the records of the index file, which are sorted by commit ID, with the commits of
+      // the service user in the log; records of commits that are in the log were replaced
+      List<ObjectId> logged = new ArrayList<>();
+      for (Map.Entry<ObjectId, Integer> e : delta.entrySet()) {
+        if (e.getValue().equals(ordinal)) {
+          logged.add(e.getKey());
+        }
+      }
+      List<ObjectId> commits = new ArrayList<>();
+      long skip = Math.max(start, 0);
+      int i = from;
+      int j = 0;
+      ObjectId indexed = null;
+      while (limit <= 0 || commits.size() < limit) {
+        for (; indexed == null && i < to; i++) {
+          ObjectId id = idAt(byUser(i));
+          if (!delta.containsKey(id)) {
+            indexed = id;
+          }
+        }
+        ObjectId next;
+        if (indexed != null && (j == logged.size() || indexed.compareTo(logged.get(j)) < 0)) {
+          next = indexed;
+          indexed = null;
+        } else if (j < logged.size()) {
+          next = logged.get(j++);
+        } else {
+          break;
+        }
+        if (skip > 0) {
+          skip--;
+        } else {
+          commits.add(next);
+        }
+      }
+      return commits;
+    }
+
+    private ObjectId idAt(int pos) {
+      byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+      for (int k = 0; k < raw.length; k++) {
+        raw[k] = buf.get(pos + k);
+      }
+      return ObjectId.fromRaw(raw);
+    }
+
+    /** Returns the position of the commit in the first section, -1 if it is not indexed. */
+    int find(int[] key) {
+      int lo = 0;
+      int hi = count - 1;
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        int c = compare(buf, byId(mid), key);
+        if (c < 0) {
+          lo = mid + 1;
+        } else if (c > 0) {
+          hi = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return -1;
+    }
+
+    /** Returns the position of the first record of the second section with the ordinal or above. */
+    private int lowerBound(int ordinal) {
+      int lo = 0;
+      int hi = count;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (buf.getInt(byUser(mid) + ORDINAL_OFFSET) < ordinal) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return lo;
+    }
+
+    int byId(int i) {
+      return HEADER_SIZE + i * RECORD_SIZE;
+    }
+
+    private int byUser(int i) {
+      return HEADER_SIZE + (count + i) * RECORD_SIZE;
+    }
+  }
+}
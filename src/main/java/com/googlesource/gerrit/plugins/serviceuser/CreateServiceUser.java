@@ -86,6 +86,8 @@ class CreateServiceUser
   private final DateFormat rfc2822DateFormatter;
   private final Provider<GetConfig> getConfig;
   private final AccountLoader.Factory accountLoader;
+  private final ServiceUserRegistry registry;
+  private final NonServiceUserCache nonServiceUsers;
 
   @Inject
   CreateServiceUser(
@@ -97,7 +99,9 @@ class CreateServiceUser
       MetaDataUpdate.User metaDataUpdateFactory,
       ProjectCache projectCache,
       Provider<GetConfig> getConfig,
-      AccountLoader.Factory accountLoader) {
+      AccountLoader.Factory accountLoader,
+      ServiceUserRegistry registry,
+      NonServiceUserCache nonServiceUsers) {
     this.cfg = cfgFactory.getFromGerritConfig(pluginName);
     this.createAccount = createAccount;
     this.blockedNames =
@@ -118,6 +122,8 @@ class CreateServiceUser
         Calendar.getInstance(gerritIdent.getTimeZone(), Locale.US));
     this.getConfig = getConfig;
     this.accountLoader = accountLoader;
+    this.registry = registry;
+    this.nonServiceUsers = nonServiceUsers;
   }
 
   @Override
@@ -172,6 +178,8 @@ class CreateServiceUser
     MetaDataUpdate md = metaDataUpdateFactory.create(allProjects);
     md.setMessage("Create service user '" + username + "'\n");
     storage.commit(md);
+    registry.invalidate();
+    nonServiceUsers.invalidate(input.email);
 
     ServiceUserInfo info = new ServiceUserInfo(response.value());
     AccountLoader al = accountLoader.create(true);
@@ -17,27 +17,47 @@ package com.googlesource.gerrit.plugins.serviceuser;
 import static com.googlesource.gerrit.plugins.serviceuser.CreateServiceUser.KEY_CREATED_BY;
 import static com.googlesource.gerrit.plugins.serviceuser.CreateServiceUser.KEY_OWNER;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static org.eclipse.jgit.lib.Constants.OBJ_COMMIT;
 
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Table;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.extensions.common.AccountInfo;
-import com.google.gerrit.extensions.restapi.MethodNotAllowedException;
-import com.google.gerrit.extensions.restapi.RestApiException;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.server.GerritPersonIdent;
 import com.google.gerrit.server.config.AnonymousCowardName;
-import com.google.gerrit.server.git.NotesBranchUtil;
-import com.google.gerrit.server.permissions.PermissionBackendException;
-import com.google.gwtorm.server.OrmException;
+import com.google.gerrit.server.config.PluginConfigFactory;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
-import com.googlesource.gerrit.plugins.serviceuser.GetServiceUser.ServiceUserInfo;
+import com.googlesource.gerrit.plugins.serviceuser.ServiceUserRegistry.Entry;
 import java.io.IOException;
-import org.eclipse.jgit.errors.ConfigInvalidException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.LargeObjectException;
+import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.notes.NoteMap;
 import org.eclipse.jgit.revwalk.RevCommit;
@@ -53,38 +73,78 @@ class CreateServiceUserNotes {
     CreateServiceUserNotes create(Project.NameKey project, Repository git);
   }
 
-  private static final String REFS_NOTES_SERVICEUSER = "refs/notes/serviceuser";
+  /** Is informed whenever a batch of notes was committed while commits are walked. */
+  interface BatchListener {
+    void onCommitted(int notes) throws IOException;
+  }
+
+  static final int MAX_NOTE_SIZE = 64 * 1024;
+
+  /**
+   * Time to wait for notes to be committed. Notes that are not committed in time stay queued and
+   * are committed later, only the caller stops waiting for them.
+   */
+  private static final long COMMIT_TIMEOUT_MINUTES = 5;
 
   private final PersonIdent gerritServerIdent;
-  private final NotesBranchUtil.Factory notesBranchUtilFactory;
+  private final NotesWriter notesWriter;
+  private final NotesLayout notesLayout;
+  private final ServiceUserProjects serviceUserProjects;
   private final ServiceUserResolver serviceUserResolver;
   private final @AnonymousCowardName String anonymousCowardName;
   private final Project.NameKey project;
   private final Repository git;
+  private final boolean includeDate;
+
+  /** Service users by committer email, empty if the email doesn't belong to a service user. */
+  private final Map<String, Optional<Entry>> serviceUsers = new HashMap<>();
+
+  /** Blobs that were inserted for note contents, so that identical notes share one blob. */
+  private final Map<String, ObjectId> blobs = new HashMap<>();
+
+  /** Notes by service user name and branch, so that each note is rendered only once. */
+  private final Table<String, String, String> notesByServiceUser = HashBasedTable.create();
+
+  /** Contents of existing notes without date, by blob ID. */
+  private final Map<ObjectId, String> existingContents = new HashMap<>();
+
+  /** Notes and lines describing the annotated commits, by notes ref. */
+  private final Map<String, NoteMap> notesByRef = new HashMap<>();
+
+  private final Map<String, StringBuilder> messagesByRef = new HashMap<>();
+
+  /** Usernames of the service users that made the annotated commits, by notes ref. */
+  private final Map<String, Map<ObjectId, String>> serviceUsersByRef = new HashMap<>();
 
   private ObjectInserter inserter;
-  private NoteMap serviceUserNotes;
-  private StringBuilder message;
+  private ObjectReader reader;
+  private Map<String, NoteMap> existingNotes;
+  private int noteCount;
 
   @Inject
   CreateServiceUserNotes(
       @GerritPersonIdent PersonIdent gerritIdent,
-      NotesBranchUtil.Factory notesBranchUtilFactory,
+      NotesWriter notesWriter,
+      NotesLayout notesLayout,
+      ServiceUserProjects serviceUserProjects,
       ServiceUserResolver serviceUserResolver,
       @AnonymousCowardName String anonymousCowardName,
+      PluginConfigFactory cfgFactory,
+      @PluginName String pluginName,
       @Assisted Project.NameKey project,
       @Assisted Repository git) {
     this.gerritServerIdent = gerritIdent;
-    this.notesBranchUtilFactory = notesBranchUtilFactory;
+    this.notesWriter = notesWriter;
+    this.notesLayout = notesLayout;
+    this.serviceUserProjects = serviceUserProjects;
     this.serviceUserResolver = serviceUserResolver;
     this.anonymousCowardName = anonymousCowardName;
     this.project = project;
     this.git = git;
+    this.includeDate = cfgFactory.getFromGerritConfig(pluginName).getBoolean("notesDate", true);
   }
 
-  void createNotes(String branch, ObjectId oldObjectId, ObjectId newObjectId)
-      throws IOException, OrmException, ConfigInvalidException, PermissionBackendException,
-          RestApiException {
+  void createNotes(String branch, ObjectId oldObjectId, ObjectId newObjectId) throws IOException {
     if (ObjectId.zeroId().equals(newObjectId)) {
       return;
     }
@@ -102,72 +162,304 @@ class CreateServiceUserNotes {
         } else {
           markUninteresting(git, branch, rw, oldObjectId);
         }
-      } catch (Exception e) {
+      } catch (MissingObjectException | IncorrectObjectTypeException e) {
+        // retrying cannot help, other I/O errors are passed on so that the update is retried
         log.error(e.getMessage(), e);
         return;
       }
 
-      for (RevCommit c : rw) {
-        ServiceUserInfo serviceUser = serviceUserResolver.getAsServiceUser(c.getCommitterIdent());
-        if (serviceUser != null) {
-          ObjectId content = createNoteContent(branch, serviceUser);
-          getNotes().set(c, content);
-          getMessage().append("* ").append(c.getShortMessage()).append("\n");
+      addNotes(rw, branch, false, 0, null);
+    }
+  }
+
+  /**
+   * Creates notes for the commits that are reachable from the tip of the branch, but not from any
+   * of the uninteresting commits. Commits that already have a note are skipped.
+   *
+   * @param batchSize number of notes after which the notes are committed while the commits are
+   *     walked, so that the pending notes stay bounded for long histories
+   * @param listener informed after each batch that was committed
+   */
+  void createNotes(
+      String branch,
+      ObjectId tip,
+      Collection<ObjectId> uninteresting,
+      int batchSize,
+      BatchListener listener)
+      throws IOException {
+    try (RevWalk rw = new RevWalk(git)) {
+      rw.markStart(rw.parseCommit(tip));
+      Set<ObjectId> seen = new HashSet<>();
+      for (ObjectId id : uninteresting) {
+        markUninteresting(rw, id, seen);
+      }
+      addNotes(rw, branch, true, batchSize, listener);
+    }
+  }
+
+  /** Returns the number of notes that were created and not committed yet. */
+  int getNoteCount() {
+    return noteCount;
+  }
+
+  /**
+   * Adds notes for the walked commits of service users.
+   *
+   * @param skipAnnotated whether commits that have a note are skipped, otherwise only commits
+   *     that have a note with the same content apart from the date are skipped
+   * @param batchSize number of notes after which the notes are committed, never if not positive
+   */
+  private void addNotes(
+      RevWalk rw, String branch, boolean skipAnnotated, int batchSize, BatchListener listener)
+      throws IOException {
+    for (RevCommit c : rw) {
+      if (skipAnnotated && getExistingNote(branch, c) != null) {
+        continue;
+      }
+      Entry serviceUser = getAsServiceUser(c.getCommitterIdent());
+      if (serviceUser != null) {
+        serviceUserProjects.add(project);
+        String note = getNote(branch, serviceUser);
+        if (!skipAnnotated && hasNote(branch, c, note)) {
+          continue;
+        }
+        ObjectId content = insertNote(note);
+        String ref = notesLayout.getRef(branch);
+        getNotes(ref).set(c, content);
+        getServiceUsers(ref).put(c.copy(), serviceUser.getUsername());
+        getMessage(ref).append("* ").append(c.getShortMessage()).append("\n");
+        noteCount++;
+        if (batchSize > 0 && noteCount >= batchSize) {
+          int committed = noteCount;
+          commitNotes();
+          listener.onCommitted(committed);
         }
       }
     }
   }
 
+  /** Resolves each committer email only once for all commits of this instance. */
+  private Entry getAsServiceUser(PersonIdent committer) throws IOException {
+    String email = Strings.nullToEmpty(committer.getEmailAddress());
+    Optional<Entry> serviceUser = serviceUsers.get(email);
+    if (serviceUser == null) {
+      serviceUser = Optional.ofNullable(serviceUserResolver.getAsServiceUser(committer));
+      serviceUsers.put(email, serviceUser);
+    }
+    return serviceUser.orElse(null);
+  }
+
+  /**
+   * Commits the notes through the {@link NotesWriter} and waits until they are committed. Further
+   * notes can be created afterwards.
+   */
   void commitNotes() throws IOException {
+    ListenableFuture<Void> done = queueNotes(0);
     try {
-      if (serviceUserNotes == null) {
-        return;
+      done.get(COMMIT_TIMEOUT_MINUTES, MINUTES);
+    } catch (TimeoutException e) {
+      throw new IOException(
+          String.format(
+              "Service user notes of %s were not committed within %d minutes",
+              project.get(), COMMIT_TIMEOUT_MINUTES),
+          e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while committing service user notes", e);
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Writes the note contents and hands the notes over to the {@link NotesWriter}, which commits
+   * them together with other notes of the project once the window ends.
+   *
+   * @return future that is done when the notes were committed
+   */
+  ListenableFuture<Void> queueNotes(long windowMs) throws IOException {
+    try {
+      if (notesByRef.isEmpty()) {
+        return Futures.immediateFuture(null);
       }
 
-      message.insert(0, "Update notes for service user commits\n\n");
-      notesBranchUtilFactory
-          .create(project, git, inserter)
-          .commitAllNotes(
-              serviceUserNotes, REFS_NOTES_SERVICEUSER, gerritServerIdent, message.toString());
+      inserter.flush();
+      List<ListenableFuture<Void>> done = new ArrayList<>(notesByRef.size());
+      for (Map.Entry<String, NoteMap> e : notesByRef.entrySet()) {
+        String ref = e.getKey();
+        done.add(
+            notesWriter.add(
+                project,
+                ref,
+                e.getValue(),
+                serviceUsersByRef.get(ref),
+                messagesByRef.get(ref).toString(),
+                windowMs));
+      }
+      return Futures.transform(
+          Futures.allAsList(done), committed -> null, MoreExecutors.directExecutor());
     } finally {
-      if (inserter != null) {
-        inserter.close();
+      close();
+    }
+  }
+
+  /**
+   * Marks the tips of all other branches and of all tags as uninteresting, so that only commits
+   * that are new in the repository are walked. Only the {@code refs/heads/} and {@code refs/tags/}
+   * namespaces are read, hence the cost doesn't depend on the number of change and meta refs,
+   * which make up most refs of a repository. Tips that are shared by several refs are parsed once
+   * and annotated tags are peeled to the commits they point to.
+   */
+  private void markUninteresting(Repository git, String branch, RevWalk rw, ObjectId oldObjectId)
+      throws IOException {
+    Set<ObjectId> seen = new HashSet<>();
+    if (!ObjectId.zeroId().equals(oldObjectId)) {
+      // For the updated branch the oldObjectId is the tip of uninteresting
+      // commit history
+      markUninteresting(rw, oldObjectId, seen);
+    }
+
+    RefDatabase refDb = git.getRefDatabase();
+    for (String prefix : new String[] {Constants.R_HEADS, Constants.R_TAGS}) {
+      for (Ref r : refDb.getRefsByPrefix(prefix)) {
+        if (r.getName().equals(branch)) {
+          continue;
+        }
+        // loose refs are not peeled, the tag is then peeled when it is parsed
+        ObjectId id = r.getPeeledObjectId();
+        if (id == null) {
+          id = r.getObjectId();
+        }
+        if (id != null) {
+          markUninteresting(rw, id, seen);
+        }
+      }
+    }
+  }
+
+  private static void markUninteresting(RevWalk rw, ObjectId id, Set<ObjectId> seen) {
+    if (!seen.add(id)) {
+      return;
+    }
+    try {
+      RevObject obj = rw.peel(rw.parseAny(id));
+      if (obj instanceof RevCommit) {
+        rw.markUninteresting((RevCommit) obj);
       }
+    } catch (IOException e) {
+      // skip if missing or not parseable
     }
   }
 
-  private void markUninteresting(Repository git, String branch, RevWalk rw, ObjectId oldObjectId) {
-    for (Ref r : git.getAllRefs().values()) {
+  private String getNote(String branch, Entry serviceUser) {
+    String note = notesByServiceUser.get(serviceUser.getUsername(), branch);
+    if (note == null) {
+      note = createServiceUserNote(branch, serviceUser);
+      notesByServiceUser.put(serviceUser.getUsername(), branch, note);
+    }
+    return note;
+  }
+
+  private ObjectId insertNote(String note) throws IOException {
+    ObjectId content = blobs.get(note);
+    if (content == null) {
+      content = getInserter().insert(Constants.OBJ_BLOB, note.getBytes(UTF_8));
+      blobs.put(note, content);
+    }
+    return content;
+  }
+
+  /** Whether the commit already has a note with the same content, apart from the date. */
+  private boolean hasNote(String branch, RevCommit c, String note) throws IOException {
+    ObjectId existing = getExistingNote(branch, c);
+    if (existing == null) {
+      return false;
+    }
+    if (existing.equals(blobs.get(note))) {
+      return true;
+    }
+    String content = existingContents.get(existing);
+    if (content == null) {
       try {
-        if (r.getName().equals(branch)) {
-          if (!ObjectId.zeroId().equals(oldObjectId)) {
-            // For the updated branch the oldObjectId is the tip of uninteresting
-            // commit history
-            rw.markUninteresting(rw.parseCommit(oldObjectId));
-          }
-        } else if (r.getName().startsWith(Constants.R_HEADS)
-            || r.getName().startsWith(Constants.R_TAGS)) {
-          rw.markUninteresting(rw.parseCommit(r.getObjectId()));
+        byte[] bytes =
+            getReader().open(existing, Constants.OBJ_BLOB).getCachedBytes(MAX_NOTE_SIZE);
+        content = withoutDate(new String(bytes, UTF_8));
+      } catch (LargeObjectException e) {
+        content = "";
+      }
+      existingContents.put(existing, content);
+    }
+    return content.equals(withoutDate(note));
+  }
+
+  private static String withoutDate(String note) {
+    return note.startsWith("Date: ") ? note.substring(note.indexOf('\n') + 1) : note;
+  }
+
+  /**
+   * Returns the blob of the existing note of the commit, {@code null} if the commit has no note.
+   * All notes refs are read on first use, independent of the notes layout. The note on the ref to
+   * which the notes of the branch are written by the current layout takes precedence, the other
+   * refs may hold stale notes that were written with another layout.
+   */
+  private ObjectId getExistingNote(String branch, RevCommit c) throws IOException {
+    if (existingNotes == null) {
+      existingNotes = new LinkedHashMap<>();
+      try (RevWalk rw = new RevWalk(getReader())) {
+        for (Ref notesRef : NotesLayout.getRefs(git)) {
+          existingNotes.put(
+              notesRef.getName(),
+              NoteMap.read(getReader(), rw.parseCommit(notesRef.getObjectId())));
         }
-      } catch (IOException e) {
-        // skip if not parseable as a commit
       }
     }
+    NoteMap preferred = existingNotes.get(notesLayout.getRef(branch));
+    if (preferred != null && preferred.contains(c)) {
+      return preferred.get(c);
+    }
+    for (NoteMap notes : existingNotes.values()) {
+      ObjectId note = notes.get(c);
+      if (note != null) {
+        return note;
+      }
+    }
+    return null;
+  }
+
+  /** Releases the inserter and reader and drops the notes that were handed over. */
+  private void close() {
+    if (inserter != null) {
+      inserter.close();
+      inserter = null;
+    }
+    if (reader != null) {
+      reader.close();
+      reader = null;
+    }
+    // the existing notes are read again, since they may have been updated in the meantime
+    existingNotes = null;
+    notesByRef.clear();
+    messagesByRef.clear();
+    serviceUsersByRef.clear();
+    noteCount = 0;
   }
 
-  private ObjectId createNoteContent(String branch, ServiceUserInfo serviceUser)
-      throws IOException, OrmException, MethodNotAllowedException, PermissionBackendException {
-    return getInserter()
-        .insert(Constants.OBJ_BLOB, createServiceUserNote(branch, serviceUser).getBytes(UTF_8));
+  private ObjectReader getReader() {
+    if (reader == null) {
+      reader = git.newObjectReader();
+    }
+    return reader;
   }
 
-  private String createServiceUserNote(String branch, ServiceUserInfo serviceUser)
-      throws OrmException, MethodNotAllowedException, PermissionBackendException {
+  private String createServiceUserNote(String branch, Entry serviceUser) {
     HeaderFormatter fmt = new HeaderFormatter(gerritServerIdent.getTimeZone(), anonymousCowardName);
-    fmt.appendDate();
+    if (includeDate) {
+      fmt.appendDate();
+    }
     fmt.append("Project", project.get());
     fmt.append("Branch", branch);
-    fmt.appendUser(KEY_CREATED_BY, serviceUser.createdBy);
+    fmt.appendUser(KEY_CREATED_BY, serviceUserResolver.getCreator(serviceUser));
     for (AccountInfo owner : serviceUserResolver.listActiveOwners(serviceUser)) {
       fmt.appendUser(KEY_OWNER, owner);
     }
@@ -181,17 +473,15 @@ class CreateServiceUserNotes {
     return inserter;
   }
 
-  private NoteMap getNotes() {
-    if (serviceUserNotes == null) {
-      serviceUserNotes = NoteMap.newEmptyMap();
-    }
-    return serviceUserNotes;
+  private NoteMap getNotes(String ref) {
+    return notesByRef.computeIfAbsent(ref, r -> NoteMap.newEmptyMap());
   }
 
-  private StringBuilder getMessage() {
-    if (message == null) {
-      message = new StringBuilder();
-    }
-    return message;
+  private Map<ObjectId, String> getServiceUsers(String ref) {
+    return serviceUsersByRef.computeIfAbsent(ref, r -> new HashMap<>());
+  }
+
+  private StringBuilder getMessage(String ref) {
+    return messagesByRef.computeIfAbsent(ref, r -> new StringBuilder());
   }
 }
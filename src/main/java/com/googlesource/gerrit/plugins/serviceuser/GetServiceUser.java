@@ -14,48 +14,38 @@
 
 package com.googlesource.gerrit.plugins.serviceuser;
 
-import static com.googlesource.gerrit.plugins.serviceuser.CreateServiceUser.KEY_CREATED_AT;
-import static com.googlesource.gerrit.plugins.serviceuser.CreateServiceUser.KEY_CREATOR_ID;
-import static com.googlesource.gerrit.plugins.serviceuser.CreateServiceUser.USER;
 import static javax.servlet.http.HttpServletResponse.SC_OK;
 
-import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.extensions.common.AccountInfo;
 import com.google.gerrit.extensions.common.GroupInfo;
 import com.google.gerrit.extensions.restapi.ResourceNotFoundException;
 import com.google.gerrit.extensions.restapi.Response;
 import com.google.gerrit.extensions.restapi.RestApiException;
 import com.google.gerrit.extensions.restapi.RestReadView;
-import com.google.gerrit.reviewdb.client.Account;
 import com.google.gerrit.server.account.AccountLoader;
 import com.google.gerrit.server.permissions.PermissionBackendException;
-import com.google.gerrit.server.project.ProjectCache;
-import com.google.gerrit.server.project.ProjectLevelConfig;
 import com.google.gerrit.server.restapi.account.GetAccount;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
-import org.eclipse.jgit.lib.Config;
+import com.googlesource.gerrit.plugins.serviceuser.ServiceUserRegistry.Entry;
 
 @Singleton
 class GetServiceUser implements RestReadView<ServiceUserResource> {
   private final Provider<GetAccount> getAccount;
-  private final String pluginName;
-  private final ProjectCache projectCache;
+  private final ServiceUserRegistry registry;
   private final GetOwner getOwner;
   private final AccountLoader.Factory accountLoader;
 
   @Inject
   GetServiceUser(
       Provider<GetAccount> getAccount,
-      @PluginName String pluginName,
-      ProjectCache projectCache,
+      ServiceUserRegistry registry,
       GetOwner getOwner,
       AccountLoader.Factory accountLoader) {
     this.getAccount = getAccount;
-    this.pluginName = pluginName;
-    this.projectCache = projectCache;
+    this.registry = registry;
     this.getOwner = getOwner;
     this.accountLoader = accountLoader;
   }
@@ -63,18 +53,17 @@ class GetServiceUser implements RestReadView<ServiceUserResource> {
   @Override
   public ServiceUserInfo apply(ServiceUserResource rsrc)
       throws RestApiException, OrmException, PermissionBackendException {
-    ProjectLevelConfig storage = projectCache.getAllProjects().getConfig(pluginName + ".db");
     String username = rsrc.getUser().getUserName().get();
-    Config db = storage.get();
-    if (!db.getSubsections(USER).contains(username)) {
+    Entry entry = registry.get().get(username);
+    if (entry == null) {
       throw new ResourceNotFoundException(username);
     }
 
     ServiceUserInfo info = new ServiceUserInfo(getAccount.get().apply(rsrc));
     AccountLoader al = accountLoader.create(true);
-    info.createdBy = al.get(new Account.Id(db.getInt(USER, username, KEY_CREATOR_ID, -1)));
+    info.createdBy = al.get(entry.getCreatorId());
     al.fill();
-    info.createdAt = db.getString(USER, username, KEY_CREATED_AT);
+    info.createdAt = entry.getCreatedAt();
     info.inactive = !rsrc.getUser().getAccount().isActive() ? true : null;
 
     Response<GroupInfo> response = getOwner.apply(rsrc);
@@ -90,6 +79,7 @@ class GetServiceUser implements RestReadView<ServiceUserResource> {
     public String createdAt;
     public Boolean inactive;
     public GroupInfo owner;
+    public Boolean _moreServiceUsers;
 
     public ServiceUserInfo(AccountInfo info) {
       super(info._accountId);
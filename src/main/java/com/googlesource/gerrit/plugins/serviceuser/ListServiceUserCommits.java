@@ -0,0 +1,122 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.serviceuser;
+
+import com.google.gerrit.extensions.restapi.AuthException;
+import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.RestReadView;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.permissions.PermissionBackend;
+import com.google.gerrit.server.permissions.PermissionBackendException;
+import com.google.gerrit.server.permissions.RefPermission;
+import com.google.gerrit.server.project.ProjectResource;
+import com.google.inject.Inject;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.kohsuke.args4j.Option;
+
+class ListServiceUserCommits implements RestReadView<ProjectResource> {
+  private final GitRepositoryManager repoManager;
+  private final PermissionBackend permissionBackend;
+  private final CommitIndex commitIndex;
+  private final List<String> commits = new ArrayList<>();
+
+  @Option(
+      name = "--commit",
+      aliases = {"-c"},
+      metaVar = "COMMIT",
+      usage = "commit for which the service user is looked up")
+  public void addCommit(String commit) {
+    commits.add(commit);
+  }
+
+  @Option(
+      name = "--user",
+      aliases = {"-u"},
+      metaVar = "USERNAME",
+      usage = "list the commits of the service user")
+  private String user;
+
+  @Option(
+      name = "--limit",
+      aliases = {"-n"},
+      metaVar = "CNT",
+      usage = "maximum number of commits to list")
+  private int limit;
+
+  @Option(
+      name = "--start",
+      aliases = {"-S"},
+      metaVar = "CNT",
+      usage = "number of commits to skip")
+  private int start;
+
+  @Inject
+  ListServiceUserCommits(
+      GitRepositoryManager repoManager,
+      PermissionBackend permissionBackend,
+      CommitIndex commitIndex) {
+    this.repoManager = repoManager;
+    this.permissionBackend = permissionBackend;
+    this.commitIndex = commitIndex;
+  }
+
+  @Override
+  public Map<String, String> apply(ProjectResource rsrc)
+      throws AuthException, BadRequestException, IOException, PermissionBackendException {
+    if (commits.isEmpty() == (user == null)) {
+      throw new BadRequestException("either --commit or --user must be specified");
+    }
+
+    Project.NameKey project = rsrc.getNameKey();
+    // the index reveals the same as the notes, which may annotate commits of any branch
+    try (Repository git = repoManager.openRepository(project)) {
+      for (Ref notesRef : NotesLayout.getRefs(git)) {
+        permissionBackend
+            .user(rsrc.getUser())
+            .project(project)
+            .ref(notesRef.getName())
+            .check(RefPermission.READ);
+      }
+    }
+
+    Map<String, String> result = new TreeMap<>();
+    if (user != null) {
+      for (ObjectId id : commitIndex.getCommits(project, user, start, limit)) {
+        result.put(id.name(), user);
+      }
+      return result;
+    }
+
+    for (String commit : commits) {
+      if (!ObjectId.isId(commit)) {
+        throw new BadRequestException(String.format("invalid commit: %s", commit));
+      }
+      ObjectId id = ObjectId.fromString(commit);
+      String username = commitIndex.get(project, id);
+      if (username != null) {
+        result.put(id.name(), username);
+      }
+    }
+    return result;
+  }
+}
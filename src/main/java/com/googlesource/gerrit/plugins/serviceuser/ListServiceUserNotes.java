@@ -0,0 +1,218 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.serviceuser;
+
+import com.google.gerrit.extensions.restapi.AuthException;
+import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.RestReadView;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.permissions.PermissionBackend;
+import com.google.gerrit.server.permissions.PermissionBackendException;
+import com.google.gerrit.server.permissions.RefPermission;
+import com.google.gerrit.server.project.ProjectResource;
+import com.google.inject.Inject;
+import com.googlesource.gerrit.plugins.serviceuser.ParsedNoteCache.ServiceUserNote;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.notes.NoteMap;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.kohsuke.args4j.Option;
+
+class ListServiceUserNotes implements RestReadView<ProjectResource> {
+  /** Maximum number of commits of a range that are walked if no limit is specified. */
+  static final int DEFAULT_LIMIT = 10000;
+
+  private final GitRepositoryManager repoManager;
+  private final PermissionBackend permissionBackend;
+  private final ParsedNoteCache noteCache;
+  private final NotesLayout notesLayout;
+  private final List<String> commits = new ArrayList<>();
+
+  @Option(
+      name = "--commit",
+      aliases = {"-c"},
+      metaVar = "COMMIT",
+      usage = "commit for which the note is returned")
+  public void addCommit(String commit) {
+    commits.add(commit);
+  }
+
+  @Option(
+      name = "--range",
+      aliases = {"-r"},
+      metaVar = "FROM..TO",
+      usage = "return the notes of the commits reachable from TO, but not from FROM")
+  private String range;
+
+  @Option(
+      name = "--limit",
+      aliases = {"-n"},
+      metaVar = "CNT",
+      usage = "maximum number of commits of the range to walk, by default " + DEFAULT_LIMIT)
+  private int limit;
+
+  /** Whether the walk of the range stopped at the limit before all commits were walked. */
+  private boolean more;
+
+  @Inject
+  ListServiceUserNotes(
+      GitRepositoryManager repoManager,
+      PermissionBackend permissionBackend,
+      ParsedNoteCache noteCache,
+      NotesLayout notesLayout) {
+    this.repoManager = repoManager;
+    this.permissionBackend = permissionBackend;
+    this.noteCache = noteCache;
+    this.notesLayout = notesLayout;
+  }
+
+  @Override
+  public Map<String, ServiceUserNoteInfo> apply(ProjectResource rsrc)
+      throws AuthException, BadRequestException, IOException, PermissionBackendException {
+    if (commits.isEmpty() == (range == null)) {
+      throw new BadRequestException("either --commit or --range must be specified");
+    }
+
+    Project.NameKey project = rsrc.getNameKey();
+    try (Repository git = repoManager.openRepository(project);
+        ObjectReader reader = git.newObjectReader();
+        RevWalk rw = new RevWalk(reader)) {
+      Map<String, NoteMap> notes = new LinkedHashMap<>();
+      for (Ref notesRef : NotesLayout.getRefs(git)) {
+        permissionBackend
+            .user(rsrc.getUser())
+            .project(project)
+            .ref(notesRef.getName())
+            .check(RefPermission.READ);
+        notes.put(notesRef.getName(), NoteMap.read(reader, rw.parseCommit(notesRef.getObjectId())));
+      }
+
+      Map<String, ServiceUserNoteInfo> result = new LinkedHashMap<>();
+      ServiceUserNoteInfo last = null;
+      for (ObjectId commit : range != null ? walk(rw, range) : parse(commits)) {
+        ServiceUserNote note = getNote(reader, notes, commit);
+        if (note != null) {
+          last = new ServiceUserNoteInfo(note);
+          result.put(commit.name(), last);
+        }
+      }
+      if (more) {
+        if (last == null) {
+          throw new BadRequestException(
+              String.format("no notes in the first %d commits of range %s", limit(), range));
+        }
+        last._moreCommits = true;
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Returns the note of the commit, {@code null} if the commit has no note. If the commit has notes
+   * on several refs, because the notes layout was changed, the note on the ref to which the current
+   * layout writes the notes of its branch is returned, the others may be stale.
+   */
+  private ServiceUserNote getNote(ObjectReader reader, Map<String, NoteMap> notes, ObjectId commit)
+      throws IOException {
+    ServiceUserNote first = null;
+    for (Map.Entry<String, NoteMap> e : notes.entrySet()) {
+      ObjectId blob = e.getValue().get(commit);
+      if (blob == null) {
+        continue;
+      }
+      ServiceUserNote note = noteCache.get(reader, blob);
+      if (note.branch != null && e.getKey().equals(notesLayout.getRef(note.branch))) {
+        return note;
+      }
+      if (first == null) {
+        first = note;
+      }
+    }
+    return first;
+  }
+
+  private List<ObjectId> walk(RevWalk rw, String range) throws BadRequestException, IOException {
+    int i = range.indexOf("..");
+    if (i < 0) {
+      throw new BadRequestException(String.format("invalid range: %s", range));
+    }
+    ObjectId from = parse(range.substring(0, i));
+    ObjectId to = parse(range.substring(i + 2));
+    rw.reset();
+    try {
+      rw.markStart(rw.parseCommit(to));
+      rw.markUninteresting(rw.parseCommit(from));
+    } catch (MissingObjectException | IncorrectObjectTypeException e) {
+      throw new BadRequestException(String.format("invalid range: %s", range));
+    }
+    int max = limit();
+    List<ObjectId> walked = new ArrayList<>();
+    for (RevCommit c : rw) {
+      if (walked.size() >= max) {
+        more = true;
+        break;
+      }
+      walked.add(c);
+    }
+    return walked;
+  }
+
+  private int limit() {
+    return limit > 0 ? limit : DEFAULT_LIMIT;
+  }
+
+  private static List<ObjectId> parse(List<String> commits) throws BadRequestException {
+    List<ObjectId> ids = new ArrayList<>(commits.size());
+    for (String commit : commits) {
+      ids.add(parse(commit));
+    }
+    return ids;
+  }
+
+  private static ObjectId parse(String commit) throws BadRequestException {
+    if (!ObjectId.isId(commit)) {
+      throw new BadRequestException(String.format("invalid commit: %s", commit));
+    }
+    return ObjectId.fromString(commit);
+  }
+
+  public static class ServiceUserNoteInfo {
+    public String project;
+    public String branch;
+    public String createdBy;
+    public List<String> owners;
+    public String date;
+    public Boolean _moreCommits;
+
+    ServiceUserNoteInfo(ServiceUserNote note) {
+      this.project = note.project;
+      this.branch = note.branch;
+      this.createdBy = note.createdBy;
+      this.owners = note.owners.isEmpty() ? null : note.owners;
+      this.date = note.date;
+    }
+  }
+}
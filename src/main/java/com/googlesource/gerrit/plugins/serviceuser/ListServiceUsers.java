@@ -14,85 +14,318 @@
 
 package com.googlesource.gerrit.plugins.serviceuser;
 
-import static com.googlesource.gerrit.plugins.serviceuser.CreateServiceUser.USER;
+import static com.google.gerrit.server.permissions.GlobalPermission.ADMINISTRATE_SERVER;
+import static java.util.Comparator.comparing;
 
+import com.google.common.collect.ImmutableCollection;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.common.data.GroupDescription;
+import com.google.gerrit.extensions.common.AccountInfo;
+import com.google.gerrit.extensions.common.GroupInfo;
 import com.google.gerrit.extensions.restapi.AuthException;
 import com.google.gerrit.extensions.restapi.IdString;
 import com.google.gerrit.extensions.restapi.ResourceNotFoundException;
 import com.google.gerrit.extensions.restapi.RestApiException;
 import com.google.gerrit.extensions.restapi.RestReadView;
+import com.google.gerrit.extensions.restapi.TopLevelResource;
+import com.google.gerrit.extensions.restapi.UnprocessableEntityException;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.AccountGroup;
 import com.google.gerrit.server.CurrentUser;
 import com.google.gerrit.server.account.AccountCache;
+import com.google.gerrit.server.account.AccountLoader;
 import com.google.gerrit.server.account.AccountState;
+import com.google.gerrit.server.account.GroupMembership;
 import com.google.gerrit.server.config.ConfigResource;
+import com.google.gerrit.server.permissions.PermissionBackend;
 import com.google.gerrit.server.permissions.PermissionBackendException;
-import com.google.gerrit.server.project.ProjectCache;
-import com.google.gerrit.server.project.ProjectLevelConfig;
+import com.google.gerrit.server.restapi.account.AccountsCollection;
+import com.google.gerrit.server.restapi.group.GroupJson;
+import com.google.gerrit.server.restapi.group.GroupsCollection;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
-import com.google.inject.Singleton;
 import com.googlesource.gerrit.plugins.serviceuser.GetServiceUser.ServiceUserInfo;
+import com.googlesource.gerrit.plugins.serviceuser.ServiceUserRegistry.Entry;
+import com.googlesource.gerrit.plugins.serviceuser.ServiceUserRegistry.Snapshot;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import org.eclipse.jgit.errors.ConfigInvalidException;
-import org.eclipse.jgit.lib.Config;
+import org.kohsuke.args4j.Option;
 
-@Singleton
 class ListServiceUsers implements RestReadView<ConfigResource> {
   private final Provider<CurrentUser> userProvider;
-  private final String pluginName;
-  private final ProjectCache projectCache;
+  private final ServiceUserRegistry registry;
   private final AccountCache accountCache;
-  private final Provider<ServiceUserCollection> serviceUsers;
-  private final Provider<GetServiceUser> getServiceUser;
+  private final AccountLoader.Factory accountLoader;
+  private final GroupsCollection groups;
+  private final GroupJson groupJson;
+  private final PermissionBackend permissionBackend;
+  private final Provider<AccountsCollection> accounts;
+
+  @Option(
+      name = "--limit",
+      aliases = {"-n"},
+      metaVar = "CNT",
+      usage = "maximum number of service users to list")
+  private int limit;
+
+  @Option(
+      name = "--start",
+      aliases = {"-S"},
+      metaVar = "CNT",
+      usage = "number of service users to skip")
+  private int start;
+
+  @Option(
+      name = "--after",
+      metaVar = "USERNAME",
+      usage = "only list service users whose username sorts after the given username")
+  private String after;
+
+  @Option(
+      name = "--prefix",
+      aliases = {"-p"},
+      metaVar = "PREFIX",
+      usage = "match service user username prefix")
+  private String prefix;
+
+  @Option(name = "--owner", metaVar = "GROUP", usage = "only list service users owned by group")
+  private String owner;
+
+  @Option(
+      name = "--creator",
+      metaVar = "ACCOUNT",
+      usage = "only list service users created by account")
+  private String creator;
+
+  @Option(name = "--inactive", usage = "only list inactive service users")
+  private boolean inactive;
 
   @Inject
   ListServiceUsers(
       Provider<CurrentUser> userProvider,
-      @PluginName String pluginName,
-      ProjectCache projectCache,
+      ServiceUserRegistry registry,
       AccountCache accountCache,
-      Provider<ServiceUserCollection> serviceUsers,
-      Provider<GetServiceUser> getServiceUser) {
+      AccountLoader.Factory accountLoader,
+      GroupsCollection groups,
+      GroupJson groupJson,
+      PermissionBackend permissionBackend,
+      Provider<AccountsCollection> accounts) {
     this.userProvider = userProvider;
-    this.pluginName = pluginName;
-    this.projectCache = projectCache;
+    this.registry = registry;
     this.accountCache = accountCache;
-    this.serviceUsers = serviceUsers;
-    this.getServiceUser = getServiceUser;
+    this.accountLoader = accountLoader;
+    this.groups = groups;
+    this.groupJson = groupJson;
+    this.permissionBackend = permissionBackend;
+    this.accounts = accounts;
   }
 
   @Override
   public Map<String, ServiceUserInfo> apply(ConfigResource rscr)
       throws OrmException, IOException, RestApiException, PermissionBackendException,
           ConfigInvalidException {
-    ProjectLevelConfig storage = projectCache.getAllProjects().getConfig(pluginName + ".db");
     CurrentUser user = userProvider.get();
     if (user == null || !user.isIdentifiedUser()) {
       throw new AuthException("Authentication required");
     }
+    boolean isAdmin = permissionBackend.user(user).testOrFalse(ADMINISTRATE_SERVER);
+    Account.Id self = user.asIdentifiedUser().getAccountId();
+    GroupMembership effectiveGroups = user.getEffectiveGroups();
+    AccountGroup.UUID ownerFilter = owner != null ? parseOwner(owner) : null;
+    Account.Id creatorFilter = creator != null ? parseCreator(creator) : null;
+
+    Map<String, Optional<GroupDescription.Basic>> ownerGroups = new HashMap<>();
+    AccountLoader al = accountLoader.create(true);
+    List<Row> rows = new ArrayList<>();
+    int skipped = 0;
+    Iterable<Entry> candidates =
+        isAdmin
+            ? candidates(registry.get(), ownerFilter, creatorFilter)
+            : visibleCandidates(registry.get(), self, effectiveGroups, ownerFilter);
+    for (Entry e : candidates) {
+      // one more row than requested tells whether there are more service users
+      if (limit > 0 && rows.size() > limit) {
+        break;
+      }
+      if (e.getAccountId() == null
+          || (prefix != null && !e.getUsername().startsWith(prefix))
+          || (creatorFilter != null && !creatorFilter.equals(e.getCreatorId()))) {
+        continue;
+      }
+      Optional<AccountState> account = accountCache.get(e.getAccountId());
+      if (!account.isPresent() || (inactive && account.get().getAccount().isActive())) {
+        continue;
+      }
 
-    Map<String, ServiceUserInfo> accounts = Maps.newTreeMap();
-    Config db = storage.get();
-    for (String username : db.getSubsections(USER)) {
-      Optional<AccountState> account = accountCache.getByUsername(username);
-      if (account.isPresent()) {
-        ServiceUserInfo info;
-        try {
-          ServiceUserResource serviceUserResource =
-              serviceUsers.get().parse(new ConfigResource(), IdString.fromDecoded(username));
-          info = getServiceUser.get().apply(serviceUserResource);
-          info.username = null;
-          accounts.put(username, info);
-        } catch (ResourceNotFoundException e) {
+      GroupDescription.Basic ownerGroup = null;
+      if (e.getOwner() != null) {
+        Optional<GroupDescription.Basic> group = ownerGroups.get(e.getOwner());
+        if (group == null) {
+          group = resolveGroup(e.getOwner());
+          ownerGroups.put(e.getOwner(), group);
+        }
+        if (!group.isPresent()
+            || (!isAdmin && !effectiveGroups.contains(group.get().getGroupUUID()))) {
           // this service user is not visible to the caller -> ignore it
+          continue;
         }
+        ownerGroup = group.get();
+      } else if (!isAdmin && !self.equals(e.getCreatorId())) {
+        continue;
+      }
+
+      if (skipped < start) {
+        skipped++;
+        continue;
       }
+      rows.add(
+          new Row(
+              e,
+              al.get(e.getAccountId()),
+              al.get(e.getCreatorId()),
+              ownerGroup,
+              !account.get().getAccount().isActive()));
+    }
+    boolean more = limit > 0 && rows.size() > limit;
+    if (more) {
+      rows.remove(rows.size() - 1);
+    }
+    al.fill();
+
+    Map<String, GroupInfo> ownerInfos = new HashMap<>();
+    Map<String, ServiceUserInfo> serviceUsers = Maps.newTreeMap();
+    for (Row r : rows) {
+      ServiceUserInfo info = new ServiceUserInfo(r.account);
+      info.username = null;
+      info.createdBy = r.creator;
+      info.createdAt = r.entry.getCreatedAt();
+      info.inactive = r.inactive ? true : null;
+      if (r.owner != null) {
+        GroupInfo ownerInfo = ownerInfos.get(r.entry.getOwner());
+        if (ownerInfo == null) {
+          ownerInfo = groupJson.format(r.owner);
+          ownerInfos.put(r.entry.getOwner(), ownerInfo);
+        }
+        info.owner = ownerInfo;
+      }
+      serviceUsers.put(r.entry.getUsername(), info);
+    }
+    if (more) {
+      // rows are sorted by username, hence the last row is the last entry of the map
+      serviceUsers.get(rows.get(rows.size() - 1).entry.getUsername())._moreServiceUsers = true;
+    }
+    return serviceUsers;
+  }
+
+  /**
+   * Returns the service users that may match the filters, sorted by username. The most selective
+   * index is used and candidates up to the {@code --after} username are skipped by binary search,
+   * so that the cost of a page doesn't depend on the total number of service users.
+   */
+  private Iterable<Entry> candidates(
+      Snapshot snapshot, AccountGroup.UUID ownerFilter, Account.Id creatorFilter) {
+    if (ownerFilter != null) {
+      return after(snapshot.getByOwner(ownerFilter));
+    } else if (creatorFilter != null) {
+      return after(snapshot.getByCreator(creatorFilter));
+    } else if (prefix != null) {
+      return after(snapshot.getByPrefix(prefix));
+    }
+    return after(snapshot.all());
+  }
+
+  /**
+   * Returns the service users that are visible to a non-administrator, sorted by username. These
+   * are the service users owned by one of the caller's groups and the service users without owner
+   * group that were created by the caller.
+   */
+  private Iterable<Entry> visibleCandidates(
+      Snapshot snapshot,
+      Account.Id self,
+      GroupMembership effectiveGroups,
+      AccountGroup.UUID ownerFilter) {
+    List<Iterable<Entry>> visible = new ArrayList<>();
+    Set<AccountGroup.UUID> owners =
+        ownerFilter != null ? ImmutableSet.of(ownerFilter) : snapshot.getOwners();
+    for (AccountGroup.UUID g : effectiveGroups.intersection(owners)) {
+      visible.add(after(snapshot.getByOwner(g)));
+    }
+    if (ownerFilter == null) {
+      visible.add(Iterables.filter(after(snapshot.getByCreator(self)), e -> e.getOwner() == null));
+    }
+    return Iterables.mergeSorted(visible, comparing(Entry::getUsername));
+  }
+
+  /** Returns the service users whose username sorts after {@code --after}. */
+  private List<Entry> after(ImmutableCollection<Entry> sortedByUsername) {
+    List<Entry> entries = sortedByUsername.asList();
+    if (after == null) {
+      return entries;
+    }
+    int i = Collections.binarySearch(Lists.transform(entries, Entry::getUsername), after);
+    return entries.subList(i >= 0 ? i + 1 : -(i + 1), entries.size());
+  }
+
+  private AccountGroup.UUID parseOwner(String group) throws RestApiException {
+    Optional<GroupDescription.Basic> g = resolveGroup(group);
+    if (!g.isPresent()) {
+      throw new UnprocessableEntityException(String.format("Group %s does not exist.", group));
+    }
+    return g.get().getGroupUUID();
+  }
+
+  private Account.Id parseCreator(String account)
+      throws RestApiException, OrmException, IOException, ConfigInvalidException {
+    try {
+      return accounts
+          .get()
+          .parse(TopLevelResource.INSTANCE, IdString.fromDecoded(account))
+          .getUser()
+          .getAccountId();
+    } catch (ResourceNotFoundException e) {
+      throw new UnprocessableEntityException(
+          String.format("Account %s does not exist.", account));
+    }
+  }
+
+  private Optional<GroupDescription.Basic> resolveGroup(String group) throws RestApiException {
+    try {
+      return Optional.of(
+          groups.parse(TopLevelResource.INSTANCE, IdString.fromDecoded(group)).getGroup());
+    } catch (ResourceNotFoundException e) {
+      return Optional.empty();
+    }
+  }
+
+  private static class Row {
+    final Entry entry;
+    final AccountInfo account;
+    final AccountInfo creator;
+    final GroupDescription.Basic owner;
+    final boolean inactive;
+
+    Row(
+        Entry entry,
+        AccountInfo account,
+        AccountInfo creator,
+        GroupDescription.Basic owner,
+        boolean inactive) {
+      this.entry = entry;
+      this.account = account;
+      this.creator = creator;
+      this.owner = owner;
+      this.inactive = inactive;
     }
-    return accounts;
   }
 }
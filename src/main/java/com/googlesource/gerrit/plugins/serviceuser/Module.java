@@ -15,16 +15,20 @@
 package com.googlesource.gerrit.plugins.serviceuser;
 
 import static com.google.gerrit.server.config.ConfigResource.CONFIG_KIND;
+import static com.google.gerrit.server.project.ProjectResource.PROJECT_KIND;
 import static com.googlesource.gerrit.plugins.serviceuser.ServiceUserResource.SERVICE_USER_KIND;
 import static com.googlesource.gerrit.plugins.serviceuser.ServiceUserResource.SERVICE_USER_SSH_KEY_KIND;
 
 import com.google.gerrit.extensions.annotations.Exports;
 import com.google.gerrit.extensions.config.CapabilityDefinition;
+import com.google.gerrit.extensions.events.AccountIndexedListener;
 import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
+import com.google.gerrit.extensions.events.GroupIndexedListener;
 import com.google.gerrit.extensions.registration.DynamicMap;
 import com.google.gerrit.extensions.registration.DynamicSet;
 import com.google.gerrit.extensions.restapi.RestApiModule;
 import com.google.gerrit.extensions.webui.TopMenu;
+import com.google.gerrit.lifecycle.LifecycleModule;
 import com.google.gerrit.server.git.validators.CommitValidationListener;
 import com.google.inject.AbstractModule;
 import com.google.inject.assistedinject.FactoryModuleBuilder;
@@ -40,6 +44,22 @@ class Module extends AbstractModule {
     DynamicSet.bind(binder(), GitReferenceUpdatedListener.class).to(RefUpdateListener.class);
     DynamicSet.bind(binder(), CommitValidationListener.class).to(ValidateServiceUserCommits.class);
     install(new FactoryModuleBuilder().build(CreateServiceUserNotes.Factory.class));
+    install(NonServiceUserCache.module());
+    install(OwnerCache.module());
+    install(ParsedNoteCache.module());
+    install(
+        new LifecycleModule() {
+          @Override
+          protected void configure() {
+            // registered first, so that it is closed after the updates were flushed
+            listener().to(NotesJournal.class);
+            listener().to(NotesExecutor.class);
+            listener().to(NotesWriter.class);
+            listener().to(RefUpdateListener.class);
+          }
+        });
+    DynamicSet.bind(binder(), AccountIndexedListener.class).to(CacheInvalidator.class);
+    DynamicSet.bind(binder(), GroupIndexedListener.class).to(CacheInvalidator.class);
     install(
         new RestApiModule() {
           @Override
@@ -70,6 +90,8 @@ class Module extends AbstractModule {
             get(SERVICE_USER_KIND, "owner").to(GetOwner.class);
             put(SERVICE_USER_KIND, "owner").to(PutOwner.class);
             delete(SERVICE_USER_KIND, "owner").to(PutOwner.class);
+            get(PROJECT_KIND, "commits").to(ListServiceUserCommits.class);
+            get(PROJECT_KIND, "notes").to(ListServiceUserNotes.class);
           }
         });
   }
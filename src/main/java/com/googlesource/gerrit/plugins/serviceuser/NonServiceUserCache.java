@@ -0,0 +1,96 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.serviceuser;
+
+import com.google.common.cache.Cache;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import java.time.Duration;
+
+/**
+ * Remembers committer emails that don't belong to a service user, so that commits of regular users
+ * can be skipped with a single cache lookup.
+ *
+ * <p>Entries expire after a while, since an email may be assigned to a service user without this
+ * plugin being involved, e.g. through the accounts REST API of Gerrit.
+ */
+@Singleton
+class NonServiceUserCache {
+  static final String CACHE_NAME = "non_service_users";
+
+  static CacheModule module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        cache(CACHE_NAME, String.class, Boolean.class)
+            .maximumWeight(16384)
+            .expireAfterWrite(Duration.ofMinutes(15));
+        bind(NonServiceUserCache.class);
+      }
+    };
+  }
+
+  private final Cache<String, Boolean> cache;
+  private final Counter0 hits;
+  private final Counter0 misses;
+
+  @Inject
+  NonServiceUserCache(@Named(CACHE_NAME) Cache<String, Boolean> cache, MetricMaker metricMaker) {
+    this.cache = cache;
+    this.hits =
+        metricMaker.newCounter(
+            "non_service_user_cache/hit_count",
+            new Description("Committer lookups answered by the non service user cache")
+                .setRate()
+                .setUnit("lookups"));
+    this.misses =
+        metricMaker.newCounter(
+            "non_service_user_cache/miss_count",
+            new Description("Committer lookups not answered by the non service user cache")
+                .setRate()
+                .setUnit("lookups"));
+  }
+
+  /** Whether the email is known to not belong to a service user. */
+  boolean contains(String email) {
+    if (cache.getIfPresent(email) != null) {
+      hits.increment();
+      return true;
+    }
+    misses.increment();
+    return false;
+  }
+
+  void put(String email) {
+    cache.put(email, true);
+  }
+
+  /** Must be called when the email may have been assigned to a service user. */
+  void invalidate(String email) {
+    if (email != null) {
+      cache.invalidate(email);
+    }
+  }
+
+  /** Must be called when the set of service users or the email of a service user changed. */
+  void invalidateAll() {
+    cache.invalidateAll();
+  }
+}
@@ -0,0 +1,159 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.serviceuser;
+
+import com.google.gerrit.extensions.annotations.PluginData;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileBasedConfig;
+import org.eclipse.jgit.util.FS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the service user notes for commits that were pushed before note creation was enabled.
+ *
+ * <p>The branch tips that were processed are recorded per project in the {@code backfill.config}
+ * file in the data directory of the plugin, so that an interrupted backfill continues where it
+ * stopped and a repeated backfill only walks commits that are new since then.
+ */
+@Singleton
+class NotesBackfill {
+  private static final Logger log = LoggerFactory.getLogger(NotesBackfill.class);
+
+  private static final String PROJECT = "project";
+  private static final String KEY_DONE = "done";
+
+  /** Number of notes after which the notes are committed, also within the walk of a branch. */
+  private static final int BATCH_SIZE = 10000;
+
+  private final GitRepositoryManager repoManager;
+  private final CreateServiceUserNotes.Factory serviceUserNotesFactory;
+  private final Path stateFile;
+
+  @Inject
+  NotesBackfill(
+      GitRepositoryManager repoManager,
+      CreateServiceUserNotes.Factory serviceUserNotesFactory,
+      @PluginData Path pluginData) {
+    this.repoManager = repoManager;
+    this.serviceUserNotesFactory = serviceUserNotesFactory;
+    this.stateFile = pluginData.resolve("backfill.config");
+  }
+
+  /**
+   * Backfills the notes of the projects, processing up to {@code threads} projects in parallel.
+   *
+   * @param progress receives a message whenever a batch of notes was committed
+   */
+  void run(List<Project.NameKey> projects, int threads, Consumer<String> progress) {
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      List<ForkJoinTask<?>> tasks = new ArrayList<>(projects.size());
+      for (Project.NameKey project : projects) {
+        tasks.add(pool.submit(() -> backfill(project, progress)));
+      }
+      for (ForkJoinTask<?> task : tasks) {
+        task.join();
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private void backfill(Project.NameKey project, Consumer<String> progress) {
+    try (Repository git = repoManager.openRepository(project)) {
+      Set<ObjectId> done = loadDone(project);
+      List<Ref> branches = git.getRefDatabase().getRefsByPrefix(Constants.R_HEADS);
+      CreateServiceUserNotes crn = serviceUserNotesFactory.create(project, git);
+      AtomicInteger notes = new AtomicInteger();
+      for (Ref branch : branches) {
+        ObjectId tip = branch.getObjectId();
+        if (tip == null || done.contains(tip)) {
+          continue;
+        }
+        // history that is shared with branches processed before is not walked again; a batch
+        // also commits the notes of the branches that were completed before, hence their tips
+        // can be saved
+        crn.createNotes(
+            branch.getName(),
+            tip,
+            done,
+            BATCH_SIZE,
+            committed -> {
+              saveDone(project, done);
+              progress.accept(
+                  String.format(
+                      "%s: %s, %d notes",
+                      project.get(), branch.getName(), notes.addAndGet(committed)));
+            });
+        done.add(tip);
+      }
+      notes.addAndGet(crn.getNoteCount());
+      crn.commitNotes();
+      saveDone(project, done);
+      progress.accept(String.format("%s: done, %d notes", project.get(), notes.get()));
+    } catch (IOException | RuntimeException e) {
+      log.error(String.format("Backfilling service user notes of %s failed", project.get()), e);
+      progress.accept(String.format("%s: failed: %s", project.get(), e.getMessage()));
+    }
+  }
+
+  private synchronized Set<ObjectId> loadDone(Project.NameKey project) throws IOException {
+    Set<ObjectId> done = new HashSet<>();
+    for (String id : loadState().getStringList(PROJECT, project.get(), KEY_DONE)) {
+      done.add(ObjectId.fromString(id));
+    }
+    return done;
+  }
+
+  private synchronized void saveDone(Project.NameKey project, Set<ObjectId> done)
+      throws IOException {
+    FileBasedConfig state = loadState();
+    List<String> ids = new ArrayList<>(done.size());
+    for (ObjectId id : done) {
+      ids.add(id.name());
+    }
+    state.setStringList(PROJECT, project.get(), KEY_DONE, ids);
+    state.save();
+  }
+
+  private FileBasedConfig loadState() throws IOException {
+    FileBasedConfig state = new FileBasedConfig(stateFile.toFile(), FS.DETECTED);
+    try {
+      state.load();
+    } catch (ConfigInvalidException e) {
+      throw new IOException(String.format("Invalid backfill state in %s", stateFile), e);
+    }
+    return state;
+  }
+}
@@ -0,0 +1,199 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.serviceuser;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.config.PluginConfig;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executor for the asynchronous work on service user notes.
+ *
+ * <p>Tasks with the same key, e.g. the same project, are run one after the other, so that they
+ * never race on the same notes ref. If the maximum number of pending tasks is reached, a task for a
+ * key without running task is run by the calling thread, and a task for a key with running task is
+ * submitted again after a delay. Tasks must hence not depend on the order in which tasks of the
+ * same key are run.
+ */
+@Singleton
+class NotesExecutor implements LifecycleListener {
+  private static final Logger log = LoggerFactory.getLogger(NotesExecutor.class);
+
+  /** Delay after which a task that didn't fit into the queue is submitted again. */
+  private static final long OVERFLOW_DELAY_MS = 1000;
+
+  private final WorkQueue workQueue;
+  private final int threads;
+  private final int maxPending;
+
+  /** Tasks waiting for the running task with their key to finish, guarded by {@code this}. */
+  private final Map<Object, Deque<Runnable>> queued = new HashMap<>();
+
+  private int pending;
+  private volatile ScheduledExecutorService executor;
+
+  @Inject
+  NotesExecutor(
+      WorkQueue workQueue, PluginConfigFactory cfgFactory, @PluginName String pluginName) {
+    this.workQueue = workQueue;
+    PluginConfig cfg = cfgFactory.getFromGerritConfig(pluginName);
+    this.threads = Math.max(1, cfg.getInt("notesThreads", 1));
+    this.maxPending = Math.max(1, cfg.getInt("notesMaxPending", 1000));
+  }
+
+  @Override
+  public void start() {
+    executor = workQueue.createQueue(threads, "ServiceUserNotes");
+  }
+
+  @Override
+  public void stop() {
+    ScheduledExecutorService e = executor;
+    if (e != null) {
+      // cleared first, so that tasks that are rejected from now on are run by the caller
+      executor = null;
+      e.shutdown();
+    }
+  }
+
+  /**
+   * Runs the task after all previously submitted tasks with the same key are done.
+   *
+   * <p>If the maximum number of pending tasks is reached, the task is not queued. If no task with
+   * the same key is running, it is run by the calling thread, and tasks that are submitted for the
+   * key meanwhile are handed over to the executor afterwards. Otherwise it is submitted again after
+   * a delay, so that tasks with the same key never run concurrently and the calling thread never
+   * runs the backlog of a busy key.
+   */
+  void submit(Object key, Runnable task) {
+    ScheduledExecutorService e = executor;
+    boolean overflow;
+    boolean busy;
+    synchronized (this) {
+      overflow = e != null && pending >= maxPending;
+      Deque<Runnable> q = queued.get(key);
+      busy = q != null;
+      if (busy && !overflow) {
+        pending++;
+        q.add(task);
+        return;
+      }
+      if (!busy) {
+        // the key is marked as running, also if the task is run by the calling thread
+        pending++;
+        queued.put(key, new ArrayDeque<>());
+      }
+    }
+    if (e == null) {
+      drain(key, task);
+    } else if (!overflow) {
+      start(e, key, task);
+    } else if (busy) {
+      log.warn("Too many pending service user note tasks, deferring task for {}", key);
+      schedule(key, task, OVERFLOW_DELAY_MS);
+    } else {
+      log.warn("Too many pending service user note tasks, running task for {} directly", key);
+      try {
+        run(key, task);
+      } finally {
+        handOff(key, next(key));
+      }
+    }
+  }
+
+  /** Starts draining the tasks of the key on the executor, or by the calling thread. */
+  private void start(ScheduledExecutorService e, Object key, Runnable first) {
+    try {
+      e.submit(() -> drain(key, first));
+    } catch (RejectedExecutionException err) {
+      // the executor was stopped meanwhile, the key must still be released by draining it
+      drain(key, first);
+    }
+  }
+
+  /** Submits the task for the key once the delay has passed. */
+  void schedule(Object key, Runnable task, long delayMs) {
+    ScheduledExecutorService e = executor;
+    if (e == null) {
+      submit(key, task);
+      return;
+    }
+    try {
+      e.schedule(() -> submit(key, task), delayMs, MILLISECONDS);
+    } catch (RejectedExecutionException err) {
+      submit(key, task);
+    }
+  }
+
+  private void drain(Object key, Runnable first) {
+    Runnable task = first;
+    try {
+      while (task != null) {
+        run(key, task);
+        task = next(key);
+      }
+    } finally {
+      if (task != null) {
+        // an error escaped from the task, the remaining tasks of the key must still be run
+        handOff(key, next(key));
+      }
+    }
+  }
+
+  private static void run(Object key, Runnable task) {
+    try {
+      task.run();
+    } catch (RuntimeException e) {
+      log.error(String.format("Service user note task for %s failed", key), e);
+    }
+  }
+
+  /** Continues with the next task of the key on the executor, if there is one. */
+  private void handOff(Object key, Runnable next) {
+    if (next == null) {
+      return;
+    }
+    ScheduledExecutorService e = executor;
+    if (e != null) {
+      start(e, key, next);
+    } else {
+      drain(key, next);
+    }
+  }
+
+  /** Returns the next task of the key, or releases the key if it has no further tasks. */
+  private synchronized Runnable next(Object key) {
+    pending--;
+    Runnable task = queued.get(key).poll();
+    if (task == null) {
+      queued.remove(key);
+    }
+    return task;
+  }
+}
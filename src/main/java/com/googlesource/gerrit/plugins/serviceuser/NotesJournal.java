@@ -0,0 +1,207 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.serviceuser;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import com.google.gerrit.extensions.annotations.PluginData;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.eclipse.jgit.lib.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of the ref updates for which notes are created asynchronously.
+ *
+ * <p>Each update is written to the {@code notes.journal} file in the data directory of the plugin
+ * and forced to disk before it is queued, and is dropped from the journal once its notes were
+ * committed. Updates that are still in the journal when the plugin starts were not processed and
+ * are queued again. Since commits that already have a current note are skipped, processing an
+ * update twice is harmless.
+ *
+ * <p>The journal is closed after the other lifecycle listeners of the plugin were stopped. Updates
+ * that arrive after it was closed are still appended to the file.
+ */
+@Singleton
+class NotesJournal implements LifecycleListener {
+  private static final Logger log = LoggerFactory.getLogger(NotesJournal.class);
+
+  /** Number of appended records after which the journal is rewritten with the open records. */
+  private static final int COMPACT_THRESHOLD = 10000;
+
+  private final Path file;
+  private final Path tmpFile;
+
+  /** Records whose notes were not committed yet, guarded by {@code this}. */
+  private final Set<Record> pending = new LinkedHashSet<>();
+
+  private FileChannel channel;
+  private int appended;
+
+  @Inject
+  NotesJournal(@PluginData Path pluginData) {
+    this.file = pluginData.resolve("notes.journal");
+    this.tmpFile = pluginData.resolve("notes.journal.tmp");
+  }
+
+  /** Opens the journal for appending and returns the records that were not processed. */
+  synchronized List<Record> open() throws IOException {
+    if (Files.exists(file)) {
+      for (String line : Files.readAllLines(file, UTF_8)) {
+        Record r = Record.parse(line);
+        if (r != null) {
+          pending.add(r);
+        } else if (!line.isEmpty()) {
+          log.warn("Ignoring invalid line in {}: {}", file, line);
+        }
+      }
+    }
+    compact();
+    return new ArrayList<>(pending);
+  }
+
+  @Override
+  public void start() {}
+
+  @Override
+  public synchronized void stop() {
+    close();
+  }
+
+  private void close() {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        log.warn(String.format("Cannot close %s", file), e);
+      }
+      channel = null;
+    }
+  }
+
+  /**
+   * Writes the update to the journal before it is queued. If the journal is closed, the update is
+   * appended to the file by a channel that is only opened for this update.
+   */
+  synchronized Record append(
+      Project.NameKey project, String ref, ObjectId oldObjectId, ObjectId newObjectId) {
+    Record r = new Record(project, ref, oldObjectId, newObjectId);
+    pending.add(r);
+    ByteBuffer line = UTF_8.encode(r + "\n");
+    try {
+      if (channel != null) {
+        write(channel, line);
+        appended++;
+      } else {
+        try (FileChannel ch = FileChannel.open(file, CREATE, WRITE, APPEND)) {
+          write(ch, line);
+        }
+      }
+    } catch (IOException e) {
+      log.error(String.format("Cannot write %s to %s, it is lost on restart", r, file), e);
+    }
+    return r;
+  }
+
+  private static void write(FileChannel ch, ByteBuffer buf) throws IOException {
+    while (buf.hasRemaining()) {
+      ch.write(buf);
+    }
+    ch.force(false);
+  }
+
+  /** Drops the records from the journal once their notes were committed. */
+  synchronized void done(Collection<Record> records) {
+    pending.removeAll(records);
+    if (channel != null && appended > 0 && (pending.isEmpty() || appended >= COMPACT_THRESHOLD)) {
+      try {
+        compact();
+      } catch (IOException e) {
+        log.error(String.format("Cannot compact %s", file), e);
+      }
+    }
+  }
+
+  /** Atomically replaces the journal by the open records and reopens it for appending. */
+  private void compact() throws IOException {
+    close();
+    StringBuilder content = new StringBuilder();
+    for (Record r : pending) {
+      content.append(r).append('\n');
+    }
+    try (FileChannel ch = FileChannel.open(tmpFile, CREATE, WRITE, TRUNCATE_EXISTING)) {
+      write(ch, UTF_8.encode(content.toString()));
+    }
+    Files.move(tmpFile, file, ATOMIC_MOVE, REPLACE_EXISTING);
+    channel = FileChannel.open(file, CREATE, WRITE, APPEND);
+    appended = 0;
+  }
+
+  /** A ref update, written as one line of old ID, new ID, ref name and project name. */
+  static class Record {
+    final Project.NameKey project;
+    final String ref;
+    final ObjectId oldObjectId;
+    final ObjectId newObjectId;
+
+    Record(Project.NameKey project, String ref, ObjectId oldObjectId, ObjectId newObjectId) {
+      this.project = project;
+      this.ref = ref;
+      this.oldObjectId = oldObjectId;
+      this.newObjectId = newObjectId;
+    }
+
+    /** Returns {@code null} if the line is not a valid record, e.g. because it was truncated. */
+    static Record parse(String line) {
+      // ref names cannot contain spaces, hence only the project name may contain some
+      String[] parts = line.split(" ", 4);
+      if (parts.length != 4
+          || !ObjectId.isId(parts[0])
+          || !ObjectId.isId(parts[1])
+          || parts[3].isEmpty()) {
+        return null;
+      }
+      return new Record(
+          new Project.NameKey(parts[3]),
+          parts[2],
+          ObjectId.fromString(parts[0]),
+          ObjectId.fromString(parts[1]));
+    }
+
+    @Override
+    public String toString() {
+      return oldObjectId.name() + " " + newObjectId.name() + " " + ref + " " + project.get();
+    }
+  }
+}
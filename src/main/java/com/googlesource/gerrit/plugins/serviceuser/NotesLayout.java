@@ -0,0 +1,68 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.serviceuser;
+
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Decides to which notes ref the service user notes are written.
+ *
+ * <p>By default all notes of a project are written to {@code refs/notes/serviceuser}. If notes
+ * are sharded, the notes for the commits of a branch are written to one of the refs {@code
+ * refs/notes/serviceuser-shards/<n>}, chosen by the branch name, so that pushes to different
+ * branches can update their notes in parallel.
+ */
+@Singleton
+class NotesLayout {
+  static final String REFS_NOTES_SERVICEUSER = "refs/notes/serviceuser";
+  static final String REFS_NOTES_SERVICEUSER_SHARDS = "refs/notes/serviceuser-shards/";
+
+  private final int shards;
+
+  @Inject
+  NotesLayout(PluginConfigFactory cfgFactory, @PluginName String pluginName) {
+    this.shards = cfgFactory.getFromGerritConfig(pluginName).getInt("notesShards", 0);
+  }
+
+  /** Returns the notes ref to which the notes for commits of the branch are written. */
+  String getRef(String branch) {
+    if (shards <= 1) {
+      return REFS_NOTES_SERVICEUSER;
+    }
+    return REFS_NOTES_SERVICEUSER_SHARDS + (branch.hashCode() & Integer.MAX_VALUE) % shards;
+  }
+
+  /**
+   * Returns all notes refs of the repository, independent of the current number of shards, so that
+   * notes that were written with another layout are still found.
+   */
+  static List<Ref> getRefs(Repository git) throws IOException {
+    List<Ref> refs = new ArrayList<>();
+    Ref unsharded = git.exactRef(REFS_NOTES_SERVICEUSER);
+    if (unsharded != null) {
+      refs.add(unsharded);
+    }
+    refs.addAll(git.getRefDatabase().getRefsByPrefix(REFS_NOTES_SERVICEUSER_SHARDS));
+    return refs;
+  }
+}
@@ -0,0 +1,188 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.serviceuser;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.GerritPersonIdent;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.NotesBranchUtil;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.notes.Note;
+import org.eclipse.jgit.notes.NoteMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Single writer of the service user notes refs.
+ *
+ * <p>Notes are added per project and notes ref and committed by a task that runs on the {@link
+ * NotesExecutor}, which runs the tasks of a notes ref one after the other. All notes of a notes ref
+ * that are pending when the task runs are committed at once, and notes can be collected over a
+ * time window so that frequent pushes don't create one notes commit each.
+ *
+ * <p>The note contents must already be written to the repository when the notes are added.
+ */
+@Singleton
+class NotesWriter implements LifecycleListener {
+  private static final Logger log = LoggerFactory.getLogger(NotesWriter.class);
+
+  private final GitRepositoryManager repoManager;
+  private final NotesBranchUtil.Factory notesBranchUtilFactory;
+  private final PersonIdent gerritServerIdent;
+  private final NotesExecutor executor;
+  private final CommitIndex commitIndex;
+
+  /** Notes that wait to be committed, guarded by {@code this}. */
+  private final Map<Map.Entry<Project.NameKey, String>, Pending> pending = new HashMap<>();
+
+  @Inject
+  NotesWriter(
+      GitRepositoryManager repoManager,
+      NotesBranchUtil.Factory notesBranchUtilFactory,
+      @GerritPersonIdent PersonIdent gerritIdent,
+      NotesExecutor executor,
+      CommitIndex commitIndex) {
+    this.repoManager = repoManager;
+    this.notesBranchUtilFactory = notesBranchUtilFactory;
+    this.gerritServerIdent = gerritIdent;
+    this.executor = executor;
+    this.commitIndex = commitIndex;
+  }
+
+  @Override
+  public void start() {}
+
+  @Override
+  public void stop() {
+    List<Map.Entry<Project.NameKey, String>> keys;
+    synchronized (this) {
+      keys = new ArrayList<>(pending.keySet());
+    }
+    for (Map.Entry<Project.NameKey, String> key : keys) {
+      flush(key);
+    }
+  }
+
+  /**
+   * Adds notes that should be committed to a notes ref of the project. The window starts with the
+   * first notes that are added for the notes ref.
+   *
+   * <p>Callers that run on the {@link NotesExecutor} must not wait for the returned future, since
+   * the commit may be queued behind their own task.
+   *
+   * @param serviceUsers usernames of the service users that made the annotated commits, which are
+   *     added to the {@link CommitIndex} once the notes were committed
+   * @param message lines describing the annotated commits
+   * @param windowMs time in milliseconds to wait for further notes, 0 to commit as soon as possible
+   * @return future that is done when the notes were committed
+   */
+  ListenableFuture<Void> add(
+      Project.NameKey project,
+      String ref,
+      NoteMap notes,
+      Map<ObjectId, String> serviceUsers,
+      String message,
+      long windowMs)
+      throws IOException {
+    Map.Entry<Project.NameKey, String> key = Maps.immutableEntry(project, ref);
+    boolean first = false;
+    ListenableFuture<Void> done;
+    synchronized (this) {
+      Pending p = pending.get(key);
+      if (p == null) {
+        p = new Pending();
+        pending.put(key, p);
+        first = true;
+      }
+      for (Note n : notes) {
+        p.notes.set(n, n.getData());
+      }
+      p.serviceUsers.putAll(serviceUsers);
+      p.message.append(message);
+      done = p.done;
+    }
+    // a single flush commits all notes that are pending when it runs
+    if (first && windowMs <= 0) {
+      executor.submit(key, () -> flush(key));
+    } else if (first) {
+      executor.schedule(key, () -> flush(key), windowMs);
+    }
+    return done;
+  }
+
+  private void flush(Map.Entry<Project.NameKey, String> key) {
+    Project.NameKey project = key.getKey();
+    Pending p;
+    synchronized (this) {
+      p = pending.remove(key);
+    }
+    if (p == null) {
+      return;
+    }
+    try (Repository git = repoManager.openRepository(project);
+        ObjectInserter inserter = git.newObjectInserter()) {
+      notesBranchUtilFactory
+          .create(project, git, inserter)
+          .commitAllNotes(
+              p.notes,
+              key.getValue(),
+              gerritServerIdent,
+              "Update notes for service user commits\n\n" + p.message);
+      p.done.set(null);
+    } catch (IOException | RuntimeException e) {
+      log.error(
+          String.format(
+              "Cannot commit service user notes to %s of project %s",
+              key.getValue(),
+              project.get()),
+          e);
+      p.done.setException(e);
+      return;
+    } finally {
+      if (!p.done.isDone()) {
+        // e.g. an error was thrown, callers that wait for the notes must not hang
+        p.done.setException(new IOException("Service user notes were not committed"));
+      }
+    }
+    try {
+      commitIndex.add(project, p.serviceUsers);
+    } catch (IOException | RuntimeException e) {
+      log.error(
+          String.format("Cannot update service user commit index of project %s", project.get()),
+          e);
+    }
+  }
+
+  private static class Pending {
+    final NoteMap notes = NoteMap.newEmptyMap();
+    final Map<ObjectId, String> serviceUsers = new HashMap<>();
+    final StringBuilder message = new StringBuilder();
+    final SettableFuture<Void> done = SettableFuture.create();
+  }
+}
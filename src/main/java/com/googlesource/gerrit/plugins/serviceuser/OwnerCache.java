@@ -0,0 +1,169 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.serviceuser;
+
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.AccountGroup;
+import com.google.gerrit.server.account.AccountCache;
+import com.google.gerrit.server.account.AccountState;
+import com.google.gerrit.server.account.GroupCache;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.group.InternalGroup;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Caches the recursively expanded members of service user owner groups. */
+@Singleton
+class OwnerCache {
+  private static final Logger log = LoggerFactory.getLogger(OwnerCache.class);
+
+  static final String CACHE_NAME = "owner_members";
+
+  static CacheModule module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        cache(CACHE_NAME, AccountGroup.UUID.class, Members.class).loader(Loader.class);
+        bind(OwnerCache.class);
+      }
+    };
+  }
+
+  private final LoadingCache<AccountGroup.UUID, Members> cache;
+
+  @Inject
+  OwnerCache(@Named(CACHE_NAME) LoadingCache<AccountGroup.UUID, Members> cache) {
+    this.cache = cache;
+  }
+
+  /** Returns the active accounts that are direct or indirect members of the group. */
+  ImmutableSet<Account.Id> getActiveMembers(AccountGroup.UUID groupUuid) {
+    try {
+      return cache.get(groupUuid).active;
+    } catch (ExecutionException e) {
+      log.warn(String.format("Cannot load members of owner group %s", groupUuid.get()), e);
+      return ImmutableSet.of();
+    }
+  }
+
+  /**
+   * Whether the account is a direct or indirect member of the group, independent of whether it is
+   * active. Returns {@code true} if the members of the group are not cached.
+   */
+  boolean mayContain(AccountGroup.UUID groupUuid, Account.Id accountId) {
+    Members members = cache.getIfPresent(groupUuid);
+    return members == null || members.all.contains(accountId);
+  }
+
+  /**
+   * Whether the group is the owner group or one of its direct or indirect subgroups. Returns {@code
+   * true} if the members of the owner group are not cached.
+   */
+  boolean mayInclude(AccountGroup.UUID ownerUuid, AccountGroup.UUID groupUuid) {
+    Members members = cache.getIfPresent(ownerUuid);
+    return members == null || members.groups.contains(groupUuid);
+  }
+
+  /**
+   * Must be called when the members of a group changed. Evicts the owner groups that include the
+   * group.
+   */
+  void evictGroup(AccountGroup.UUID groupUuid) {
+    for (Map.Entry<AccountGroup.UUID, Members> e : cache.asMap().entrySet()) {
+      if (e.getValue().groups.contains(groupUuid)) {
+        cache.invalidate(e.getKey());
+      }
+    }
+  }
+
+  /** Must be called when an account changed, e.g. when it was (de)activated. */
+  void evictAccount(Account.Id accountId) {
+    for (Map.Entry<AccountGroup.UUID, Members> e : cache.asMap().entrySet()) {
+      if (e.getValue().all.contains(accountId)) {
+        cache.invalidate(e.getKey());
+      }
+    }
+  }
+
+  static class Members {
+    final ImmutableSet<Account.Id> all;
+    final ImmutableSet<Account.Id> active;
+
+    /** The group and its subgroups that were expanded, including those that don't exist. */
+    final ImmutableSet<AccountGroup.UUID> groups;
+
+    Members(
+        ImmutableSet<Account.Id> all,
+        ImmutableSet<Account.Id> active,
+        ImmutableSet<AccountGroup.UUID> groups) {
+      this.all = all;
+      this.active = active;
+      this.groups = groups;
+    }
+  }
+
+  static class Loader extends CacheLoader<AccountGroup.UUID, Members> {
+    private final GroupCache groupCache;
+    private final AccountCache accountCache;
+
+    @Inject
+    Loader(GroupCache groupCache, AccountCache accountCache) {
+      this.groupCache = groupCache;
+      this.accountCache = accountCache;
+    }
+
+    @Override
+    public Members load(AccountGroup.UUID groupUuid) {
+      Set<Account.Id> members = new LinkedHashSet<>();
+      Set<AccountGroup.UUID> seen = new HashSet<>();
+      Deque<AccountGroup.UUID> todo = new ArrayDeque<>();
+      todo.add(groupUuid);
+      while (!todo.isEmpty()) {
+        AccountGroup.UUID uuid = todo.poll();
+        if (!seen.add(uuid)) {
+          continue;
+        }
+        Optional<InternalGroup> group = groupCache.get(uuid);
+        if (group.isPresent()) {
+          members.addAll(group.get().getMembers());
+          todo.addAll(group.get().getSubgroups());
+        }
+      }
+
+      ImmutableSet.Builder<Account.Id> active = ImmutableSet.builder();
+      for (Account.Id id : members) {
+        Optional<AccountState> account = accountCache.get(id);
+        if (account.isPresent() && account.get().getAccount().isActive()) {
+          active.add(id);
+        }
+      }
+      return new Members(ImmutableSet.copyOf(members), active.build(), ImmutableSet.copyOf(seen));
+    }
+  }
+}
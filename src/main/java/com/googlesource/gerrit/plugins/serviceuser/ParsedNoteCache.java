@@ -0,0 +1,141 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.serviceuser;
+
+import static com.googlesource.gerrit.plugins.serviceuser.CreateServiceUser.KEY_CREATED_BY;
+import static com.googlesource.gerrit.plugins.serviceuser.CreateServiceUser.KEY_OWNER;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import org.eclipse.jgit.errors.LargeObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+
+/**
+ * Caches the parsed content of service user notes by the ID of the note blob. Since blobs are
+ * immutable, entries never need to be evicted, and since identical notes share one blob, a cached
+ * note usually serves many commits.
+ */
+@Singleton
+class ParsedNoteCache {
+  static final String CACHE_NAME = "parsed_notes";
+
+  static CacheModule module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        cache(CACHE_NAME, ObjectId.class, ServiceUserNote.class).maximumWeight(16384);
+        bind(ParsedNoteCache.class);
+      }
+    };
+  }
+
+  private final Cache<ObjectId, ServiceUserNote> cache;
+
+  @Inject
+  ParsedNoteCache(@Named(CACHE_NAME) Cache<ObjectId, ServiceUserNote> cache) {
+    this.cache = cache;
+  }
+
+  /** Returns the parsed note, reading the blob through the reader if it is not cached. */
+  ServiceUserNote get(ObjectReader reader, ObjectId blob) throws IOException {
+    try {
+      return cache.get(blob.copy(), () -> ServiceUserNote.parse(read(reader, blob)));
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private static String read(ObjectReader reader, ObjectId blob) throws IOException {
+    try {
+      byte[] bytes =
+          reader
+              .open(blob, Constants.OBJ_BLOB)
+              .getCachedBytes(CreateServiceUserNotes.MAX_NOTE_SIZE);
+      return new String(bytes, UTF_8);
+    } catch (LargeObjectException e) {
+      // not written by this plugin
+      return "";
+    }
+  }
+
+  /** The fields of a note as written by {@link CreateServiceUserNotes}. */
+  static class ServiceUserNote {
+    final String project;
+    final String branch;
+    final String createdBy;
+    final ImmutableList<String> owners;
+    final String date;
+
+    ServiceUserNote(
+        String project,
+        String branch,
+        String createdBy,
+        ImmutableList<String> owners,
+        String date) {
+      this.project = project;
+      this.branch = branch;
+      this.createdBy = createdBy;
+      this.owners = owners;
+      this.date = date;
+    }
+
+    /** Parses the {@code key: value} lines of the note, unknown keys are ignored. */
+    static ServiceUserNote parse(String note) {
+      String project = null;
+      String branch = null;
+      String createdBy = null;
+      String date = null;
+      ImmutableList.Builder<String> owners = ImmutableList.builder();
+      for (String line : note.split("\n")) {
+        int i = line.indexOf(": ");
+        if (i < 0) {
+          continue;
+        }
+        String value = line.substring(i + 2);
+        switch (line.substring(0, i)) {
+          case "Date":
+            date = value;
+            break;
+          case "Project":
+            project = value;
+            break;
+          case "Branch":
+            branch = value;
+            break;
+          case KEY_CREATED_BY:
+            createdBy = value;
+            break;
+          case KEY_OWNER:
+            owners.add(value);
+            break;
+          default:
+            break;
+        }
+      }
+      return new ServiceUserNote(project, branch, createdBy, owners.build(), date);
+    }
+  }
+}
@@ -0,0 +1,144 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.serviceuser;
+
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.AccountGroup;
+import com.google.gerrit.server.account.AccountCache;
+import com.google.gerrit.server.account.AccountState;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.serviceuser.ServiceUserRegistry.Entry;
+import com.googlesource.gerrit.plugins.serviceuser.ServiceUserRegistry.Snapshot;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Table that tells for each service user whether its commits may be pushed.
+ *
+ * <p>Commits of a service user are rejected if all accounts of its owner group or the account of
+ * its creator are inactive. The result is computed once per service user and kept until an account
+ * or group change affects it, then it is recomputed in the background.
+ */
+@Singleton
+class PushEligibility {
+  private final ServiceUserRegistry registry;
+  private final ServiceUserResolver serviceUserResolver;
+  private final AccountCache accountCache;
+  private final OwnerCache ownerCache;
+  private final WorkQueue workQueue;
+
+  /** Maps the service user account ID to the reason for rejecting its commits, if any. */
+  private final ConcurrentMap<Account.Id, Optional<String>> table = new ConcurrentHashMap<>();
+
+  private volatile Snapshot snapshot;
+
+  @Inject
+  PushEligibility(
+      ServiceUserRegistry registry,
+      ServiceUserResolver serviceUserResolver,
+      AccountCache accountCache,
+      OwnerCache ownerCache,
+      WorkQueue workQueue) {
+    this.registry = registry;
+    this.serviceUserResolver = serviceUserResolver;
+    this.accountCache = accountCache;
+    this.ownerCache = ownerCache;
+    this.workQueue = workQueue;
+  }
+
+  /** Returns the reason for rejecting commits of the service user, empty if they are accepted. */
+  Optional<String> check(Entry serviceUser) {
+    currentSnapshot();
+    return table.computeIfAbsent(serviceUser.getAccountId(), id -> compute(serviceUser));
+  }
+
+  /** Must be called when an account changed, e.g. when it was (de)activated. */
+  void evictAccount(Account.Id accountId) {
+    Snapshot s = currentSnapshot();
+    List<Entry> affected = new ArrayList<>(s.getByCreator(accountId));
+    for (AccountGroup.UUID owner : s.getOwners()) {
+      if (ownerCache.mayContain(owner, accountId)) {
+        affected.addAll(s.getByOwner(owner));
+      }
+    }
+    recompute(affected);
+  }
+
+  /** Must be called when the members of a group changed. */
+  void evictGroup(AccountGroup.UUID groupUuid) {
+    Snapshot s = currentSnapshot();
+    List<Entry> affected = new ArrayList<>();
+    for (AccountGroup.UUID owner : s.getOwners()) {
+      if (ownerCache.mayInclude(owner, groupUuid)) {
+        affected.addAll(s.getByOwner(owner));
+      }
+    }
+    recompute(affected);
+  }
+
+  private Snapshot currentSnapshot() {
+    Snapshot s = registry.get();
+    if (s != snapshot) {
+      // owners may have changed
+      synchronized (this) {
+        if (s != snapshot) {
+          table.clear();
+          snapshot = s;
+        }
+      }
+    }
+    return s;
+  }
+
+  private void recompute(List<Entry> affected) {
+    List<Entry> evicted = new ArrayList<>();
+    for (Entry e : affected) {
+      if (e.getAccountId() != null && table.remove(e.getAccountId()) != null) {
+        evicted.add(e);
+      }
+    }
+    if (!evicted.isEmpty()) {
+      workQueue
+          .getDefaultQueue()
+          .submit(
+              () -> {
+                Snapshot s = registry.get();
+                for (Entry e : evicted) {
+                  Entry current = s.get(e.getAccountId());
+                  if (current != null) {
+                    check(current);
+                  }
+                }
+              });
+    }
+  }
+
+  private Optional<String> compute(Entry serviceUser) {
+    if (serviceUser.getOwner() != null
+        && serviceUserResolver.listActiveOwners(serviceUser).isEmpty()) {
+      return Optional.of("all service user owner accounts are inactive");
+    }
+    Optional<AccountState> creator = accountCache.get(serviceUser.getCreatorId());
+    if (!creator.isPresent() || !creator.get().getAccount().isActive()) {
+      return Optional.of("the account of the service creator is inactive");
+    }
+    return Optional.empty();
+  }
+}
@@ -52,6 +52,7 @@ class PutEmail implements RestModifyView<ServiceUserResource, Input> {
   private final Provider<PutPreferred> putPreferred;
   private final Provider<CurrentUser> self;
   private final PermissionBackend permissionBackend;
+  private final NonServiceUserCache nonServiceUsers;
 
   @Inject
   PutEmail(
@@ -61,7 +62,8 @@ class PutEmail implements RestModifyView<ServiceUserResource, Input> {
       Provider<DeleteEmail> deleteEmail,
       Provider<PutPreferred> putPreferred,
       Provider<CurrentUser> self,
-      PermissionBackend permissionBackend) {
+      PermissionBackend permissionBackend,
+      NonServiceUserCache nonServiceUsers) {
     this.getConfig = getConfig;
     this.getEmail = getEmail;
     this.createEmail = createEmail;
@@ -69,6 +71,7 @@ class PutEmail implements RestModifyView<ServiceUserResource, Input> {
     this.putPreferred = putPreferred;
     this.self = self;
     this.permissionBackend = permissionBackend;
+    this.nonServiceUsers = nonServiceUsers;
   }
 
   @Override
@@ -97,6 +100,7 @@ class PutEmail implements RestModifyView<ServiceUserResource, Input> {
       in.noConfirmation = true;
       createEmail.get().apply(rsrc.getUser(), IdString.fromDecoded(email), in);
       putPreferred.get().apply(rsrc.getUser(), input.email);
+      nonServiceUsers.invalidate(input.email);
       return Response.ok(input.email);
     }
   }
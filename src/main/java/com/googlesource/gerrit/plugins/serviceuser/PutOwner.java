@@ -63,6 +63,7 @@ class PutOwner implements RestModifyView<ServiceUserResource, Input> {
   private final GroupJson json;
   private final Provider<CurrentUser> self;
   private final PermissionBackend permissionBackend;
+  private final ServiceUserRegistry registry;
 
   @Inject
   PutOwner(
@@ -73,7 +74,8 @@ class PutOwner implements RestModifyView<ServiceUserResource, Input> {
       MetaDataUpdate.User metaDataUpdateFactory,
       GroupJson json,
       Provider<CurrentUser> self,
-      PermissionBackend permissionBackend) {
+      PermissionBackend permissionBackend,
+      ServiceUserRegistry registry) {
     this.getConfig = getConfig;
     this.groups = groups;
     this.pluginName = pluginName;
@@ -83,6 +85,7 @@ class PutOwner implements RestModifyView<ServiceUserResource, Input> {
     this.json = json;
     this.self = self;
     this.permissionBackend = permissionBackend;
+    this.registry = registry;
   }
 
   @Override
@@ -112,6 +115,7 @@ class PutOwner implements RestModifyView<ServiceUserResource, Input> {
     MetaDataUpdate md = metaDataUpdateFactory.create(allProjects);
     md.setMessage("Set owner for service user '" + rsrc.getUser().getUserName() + "'\n");
     storage.commit(md);
+    registry.invalidate();
     return group != null
         ? (oldGroup != null
             ? Response.ok(json.format(group))
@@ -0,0 +1,133 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.serviceuser;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Precompiled set of include and exclude ref patterns.
+ *
+ * <p>A pattern ending with {@code /*} matches all refs with that prefix, a pattern starting with
+ * {@code ^} is a regular expression and any other pattern matches one ref exactly. Invalid regular
+ * expressions are logged when the filter is compiled and ignored.
+ */
+class RefFilter {
+  private static final Logger log = LoggerFactory.getLogger(RefFilter.class);
+
+  /** Refs that are only written by the Gerrit server, hence never contain service user commits. */
+  private static final Matcher SERVER_REFS =
+      new Matcher(
+          Arrays.asList(
+              NotesLayout.REFS_NOTES_SERVICEUSER,
+              NotesLayout.REFS_NOTES_SERVICEUSER_SHARDS + "*",
+              "^refs/changes/.*/meta",
+              "^refs/changes/.*/robot-comments",
+              "refs/cache-automerge/*",
+              "refs/draft-comments/*",
+              "refs/groups/*",
+              "refs/sequences/*",
+              "refs/starred-changes/*",
+              "refs/users/*"));
+
+  private static final LoadingCache<List<List<String>>, RefFilter> compiled =
+      CacheBuilder.newBuilder()
+          .maximumSize(1000)
+          .build(
+              new CacheLoader<List<List<String>>, RefFilter>() {
+                @Override
+                public RefFilter load(List<List<String>> patterns) {
+                  return new RefFilter(patterns.get(0), patterns.get(1));
+                }
+              });
+
+  /**
+   * Returns the filter for the patterns. Filters are compiled once and shared between callers that
+   * pass the same patterns.
+   *
+   * @param include patterns of which a ref must match one, all refs match if empty
+   * @param exclude patterns of which a ref must not match any
+   */
+  static RefFilter get(List<String> include, List<String> exclude) {
+    return compiled.getUnchecked(
+        ImmutableList.of(ImmutableList.copyOf(include), ImmutableList.copyOf(exclude)));
+  }
+
+  private final Matcher include;
+  private final Matcher exclude;
+
+  private RefFilter(List<String> include, List<String> exclude) {
+    this.include = include.isEmpty() ? null : new Matcher(include);
+    this.exclude = new Matcher(exclude);
+  }
+
+  /** Whether the ref may contain commits that need service user notes. */
+  boolean matches(String ref) {
+    return !SERVER_REFS.matches(ref)
+        && (include == null || include.matches(ref))
+        && !exclude.matches(ref);
+  }
+
+  private static class Matcher {
+    private final ImmutableSet<String> exact;
+    private final ImmutableList<String> prefixes;
+    private final Pattern regex;
+
+    Matcher(List<String> patterns) {
+      ImmutableSet.Builder<String> exact = ImmutableSet.builder();
+      ImmutableList.Builder<String> prefixes = ImmutableList.builder();
+      List<String> regexes = new ArrayList<>();
+      for (String p : patterns) {
+        if (p.startsWith("^")) {
+          try {
+            Pattern.compile(p.substring(1));
+            regexes.add("(?:" + p.substring(1) + ")");
+          } catch (PatternSyntaxException e) {
+            log.error("Ignoring invalid ref pattern {}: {}", p, e.getMessage());
+          }
+        } else if (p.endsWith("/*")) {
+          prefixes.add(p.substring(0, p.length() - 1));
+        } else {
+          exact.add(p);
+        }
+      }
+      this.exact = exact.build();
+      this.prefixes = prefixes.build();
+      this.regex = regexes.isEmpty() ? null : Pattern.compile(String.join("|", regexes));
+    }
+
+    boolean matches(String ref) {
+      if (exact.contains(ref)) {
+        return true;
+      }
+      for (String prefix : prefixes) {
+        if (ref.startsWith(prefix)) {
+          return true;
+        }
+      }
+      return regex != null && regex.matcher(ref).matches();
+    }
+  }
+}
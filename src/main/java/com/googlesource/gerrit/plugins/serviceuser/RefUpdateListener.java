@@ -14,106 +14,361 @@
 
 package com.googlesource.gerrit.plugins.serviceuser;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
-import com.google.gerrit.extensions.restapi.RestApiException;
+import com.google.gerrit.extensions.events.LifecycleListener;
 import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.config.ConfigUtil;
 import com.google.gerrit.server.config.PluginConfig;
 import com.google.gerrit.server.config.PluginConfigFactory;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.git.ProjectRunnable;
-import com.google.gerrit.server.git.WorkQueue;
-import com.google.gerrit.server.permissions.PermissionBackendException;
-import com.google.gwtorm.server.OrmException;
+import com.google.gerrit.server.project.NoSuchProjectException;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import java.io.IOException;
-import org.eclipse.jgit.errors.ConfigInvalidException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 @Singleton
-class RefUpdateListener implements GitReferenceUpdatedListener {
+class RefUpdateListener implements GitReferenceUpdatedListener, LifecycleListener {
   private static final Logger log = LoggerFactory.getLogger(RefUpdateListener.class);
+  private static final long MIN_RETRY_DELAY_MS = TimeUnit.SECONDS.toMillis(10);
+  private static final long MAX_RETRY_DELAY_MS = TimeUnit.MINUTES.toMillis(10);
 
   private final CreateServiceUserNotes.Factory serviceUserNotesFactory;
   private final GitRepositoryManager repoManager;
-  private final WorkQueue workQueue;
+  private final NotesExecutor executor;
+  private final NotesJournal journal;
+  private final ServiceUserProjects serviceUserProjects;
+  private final NotesLayout notesLayout;
   private final PluginConfigFactory cfgFactory;
   private final String pluginName;
 
+  /**
+   * Ref updates that wait to be processed, per project and notes ref and then per branch, guarded
+   * by itself. The updates of branches whose notes are written to different notes refs are
+   * processed in parallel.
+   */
+  private final Map<Map.Entry<Project.NameKey, String>, Map<String, Range>> pending =
+      new HashMap<>();
+
+  /** Number of consecutive failures per project and notes ref, guarded by {@link #pending}. */
+  private final Map<Map.Entry<Project.NameKey, String>, Integer> failures = new HashMap<>();
+
   @Inject
   RefUpdateListener(
       CreateServiceUserNotes.Factory serviceUserNotesFactory,
       GitRepositoryManager repoManager,
-      WorkQueue workQueue,
+      NotesExecutor executor,
+      NotesJournal journal,
+      ServiceUserProjects serviceUserProjects,
+      NotesLayout notesLayout,
       PluginConfigFactory cfgFactory,
       @PluginName String pluginName) {
     this.serviceUserNotesFactory = serviceUserNotesFactory;
     this.repoManager = repoManager;
-    this.workQueue = workQueue;
+    this.executor = executor;
+    this.journal = journal;
+    this.serviceUserProjects = serviceUserProjects;
+    this.notesLayout = notesLayout;
     this.cfgFactory = cfgFactory;
     this.pluginName = pluginName;
   }
 
   @Override
-  public void onGitReferenceUpdated(final Event event) {
+  public void start() {
+    List<NotesJournal.Record> records;
+    try {
+      records = journal.open();
+    } catch (IOException e) {
+      log.error("Cannot open the journal of pending service user notes", e);
+      return;
+    }
+    if (!records.isEmpty()) {
+      log.info("Creating service user notes for {} journaled ref updates", records.size());
+      long windowMs = getWindowMs(cfgFactory.getFromGerritConfig(pluginName));
+      for (NotesJournal.Record r : records) {
+        queue(r, windowMs);
+      }
+    }
+  }
+
+  @Override
+  public void stop() {}
+
+  @Override
+  public void onGitReferenceUpdated(Event event) {
     PluginConfig cfg = cfgFactory.getFromGerritConfig(pluginName);
     if (!cfg.getBoolean("createNotes", true)) {
       return;
     }
+    Project.NameKey project = new Project.NameKey(event.getProjectName());
+    if (!matchesRefFilter(cfg, project, event.getRefName())) {
+      return;
+    }
+    if (cfg.getBoolean("notesSkipUnusedProjects", false)
+        && !serviceUserProjects.contains(project)) {
+      return;
+    }
+    long windowMs = getWindowMs(cfg);
 
-    Runnable task =
-        new ProjectRunnable() {
-          @Override
-          public void run() {
-            createServiceUserNotes(event);
-          }
+    ObjectId oldObjectId = ObjectId.fromString(event.getOldObjectId());
+    ObjectId newObjectId = ObjectId.fromString(event.getNewObjectId());
+    if (cfg.getBoolean("createNotesAsync", false)) {
+      queue(journal.append(project, event.getRefName(), oldObjectId, newObjectId), windowMs);
+    } else {
+      Range range = new Range(oldObjectId, newObjectId);
+      createServiceUserNotes(project, ImmutableMap.of(event.getRefName(), range), windowMs, false);
+    }
+  }
 
-          @Override
-          public Project.NameKey getProjectNameKey() {
-            return new Project.NameKey(event.getProjectName());
-          }
+  private static long getWindowMs(PluginConfig cfg) {
+    return ConfigUtil.getTimeUnit(
+        Strings.nullToEmpty(cfg.getString("notesCommitWindow")), 0, MILLISECONDS);
+  }
 
-          @Override
-          public String getRemoteName() {
-            return null;
+  /**
+   * Whether the ref passes the global ref filter from the {@code gerrit.config} and the ref filter
+   * of the project. This is decided from cached configuration only, without opening the
+   * repository.
+   */
+  private boolean matchesRefFilter(PluginConfig cfg, Project.NameKey project, String ref) {
+    if (!refFilter(cfg).matches(ref)) {
+      return false;
+    }
+    try {
+      return refFilter(cfgFactory.getFromProjectConfig(project, pluginName)).matches(ref);
+    } catch (NoSuchProjectException e) {
+      return false;
+    }
+  }
+
+  private static RefFilter refFilter(PluginConfig cfg) {
+    return RefFilter.get(
+        Arrays.asList(cfg.getStringList("notesRef")),
+        Arrays.asList(cfg.getStringList("notesExcludeRef")));
+  }
+
+  /**
+   * Returns the key by which the updates of the branch are queued, the project and the notes ref to
+   * which the notes of the branch are written. The key is also used for the tasks on the {@link
+   * NotesExecutor}, so that notes of a notes ref are created and committed one after the other.
+   */
+  private Map.Entry<Project.NameKey, String> key(Project.NameKey project, String ref) {
+    return Maps.immutableEntry(project, notesLayout.getRef(ref));
+  }
+
+  /**
+   * Adds the journaled update to the pending updates of its project and notes ref and submits a
+   * task for them if none is pending. If the branch already has a pending update, both are merged
+   * into one update from the oldest to the newest revision.
+   */
+  private void queue(NotesJournal.Record record, long windowMs) {
+    Map.Entry<Project.NameKey, String> key = key(record.project, record.ref);
+    boolean first;
+    synchronized (pending) {
+      Map<String, Range> updates = pending.get(key);
+      first = updates == null;
+      if (first) {
+        updates = new LinkedHashMap<>();
+        pending.put(key, updates);
+      }
+      merge(updates, record);
+    }
+    if (first) {
+      executor.submit(key, new NotesTask(key, windowMs));
+    }
+  }
+
+  /**
+   * Queues the journaled updates of a failed task again. They are older than the updates that were
+   * queued for the same key in the meantime, hence they are merged in front of them.
+   */
+  private void requeue(
+      Map.Entry<Project.NameKey, String> key, List<NotesJournal.Record> records, long windowMs) {
+    boolean first;
+    synchronized (pending) {
+      Map<String, Range> updates = new LinkedHashMap<>();
+      for (NotesJournal.Record r : records) {
+        merge(updates, r);
+      }
+      Map<String, Range> newer = pending.put(key, updates);
+      first = newer == null;
+      if (!first) {
+        for (Range range : newer.values()) {
+          for (NotesJournal.Record r : range.records) {
+            merge(updates, r);
           }
+        }
+      }
+    }
+    if (first) {
+      executor.submit(key, new NotesTask(key, windowMs));
+    }
+  }
 
+  private static void merge(Map<String, Range> updates, NotesJournal.Record record) {
+    Range r = updates.get(record.ref);
+    if (r != null) {
+      r.newObjectId = record.newObjectId;
+    } else {
+      r = new Range(record.oldObjectId, record.newObjectId);
+      updates.put(record.ref, r);
+    }
+    r.records.add(record);
+  }
+
+  /**
+   * Creates the notes for the updates.
+   *
+   * @param async whether this runs on the {@link NotesExecutor}, then it must not wait for the
+   *     notes to be committed
+   * @return future that is done when the notes were committed, or failed if they could not be
+   *     created or committed
+   */
+  private ListenableFuture<Void> createServiceUserNotes(
+      Project.NameKey project, Map<String, Range> updates, long windowMs, boolean async) {
+    try (Repository git = repoManager.openRepository(project)) {
+      CreateServiceUserNotes crn = serviceUserNotesFactory.create(project, git);
+      for (Map.Entry<String, Range> u : updates.entrySet()) {
+        crn.createNotes(u.getKey(), u.getValue().oldObjectId, u.getValue().newObjectId);
+      }
+      if (async || windowMs > 0) {
+        return crn.queueNotes(windowMs);
+      }
+      crn.commitNotes();
+    } catch (IOException | RuntimeException x) {
+      log.error(x.getMessage(), x);
+      return Futures.immediateFailedFuture(x);
+    }
+    return Futures.immediateFuture(null);
+  }
+
+  /**
+   * Drops the records from the journal once their notes were committed. If the notes could not be
+   * committed, the records stay in the journal and are queued again after a delay that grows with
+   * the number of consecutive failures of the key.
+   */
+  private void onDone(
+      Map.Entry<Project.NameKey, String> key,
+      List<NotesJournal.Record> records,
+      ListenableFuture<Void> done,
+      long windowMs) {
+    Futures.addCallback(
+        done,
+        new FutureCallback<Void>() {
           @Override
-          public boolean hasCustomizedPrint() {
-            return true;
+          public void onSuccess(Void result) {
+            synchronized (pending) {
+              failures.remove(key);
+            }
+            journal.done(records);
           }
 
           @Override
-          public String toString() {
-            return "create-service-user-notes";
+          public void onFailure(Throwable t) {
+            if (t instanceof RepositoryNotFoundException) {
+              // the project was deleted, its notes can never be created
+              journal.done(records);
+              return;
+            }
+            int n;
+            synchronized (pending) {
+              n = failures.merge(key, 1, Integer::sum);
+            }
+            long delayMs = Math.min(MIN_RETRY_DELAY_MS << Math.min(n - 1, 16), MAX_RETRY_DELAY_MS);
+            log.warn(
+                "Retrying to create service user notes for {} ref updates of {} in {} ms",
+                records.size(),
+                key.getKey().get(),
+                delayMs);
+            executor.schedule(key, () -> requeue(key, records, windowMs), delayMs);
           }
-        };
-    if (cfg.getBoolean("createNotesAsync", false)) {
-      workQueue.getDefaultQueue().submit(task);
-    } else {
-      task.run();
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  private static class Range {
+    final ObjectId oldObjectId;
+    ObjectId newObjectId;
+
+    /** Journal records of the merged updates, empty for synchronous updates. */
+    final List<NotesJournal.Record> records = new ArrayList<>();
+
+    Range(ObjectId oldObjectId, ObjectId newObjectId) {
+      this.oldObjectId = oldObjectId;
+      this.newObjectId = newObjectId;
     }
   }
 
-  private void createServiceUserNotes(Event e) {
-    Project.NameKey projectName = new Project.NameKey(e.getProjectName());
-    try (Repository git = repoManager.openRepository(projectName)) {
-      CreateServiceUserNotes crn = serviceUserNotesFactory.create(projectName, git);
-      crn.createNotes(
-          e.getRefName(),
-          ObjectId.fromString(e.getOldObjectId()),
-          ObjectId.fromString(e.getNewObjectId()));
-      crn.commitNotes();
-    } catch (IOException
-        | OrmException
-        | ConfigInvalidException
-        | PermissionBackendException
-        | RestApiException x) {
-      log.error(x.getMessage(), x);
+  /**
+   * Creates the notes for all updates of the project and notes ref that are pending when it runs.
+   */
+  private class NotesTask implements ProjectRunnable {
+    private final Map.Entry<Project.NameKey, String> key;
+    private final Project.NameKey project;
+    private final long windowMs;
+
+    NotesTask(Map.Entry<Project.NameKey, String> key, long windowMs) {
+      this.key = key;
+      this.project = key.getKey();
+      this.windowMs = windowMs;
+    }
+
+    @Override
+    public void run() {
+      Map<String, Range> updates;
+      synchronized (pending) {
+        updates = pending.remove(key);
+      }
+      if (updates == null) {
+        return;
+      }
+      List<NotesJournal.Record> records = new ArrayList<>();
+      for (Range r : updates.values()) {
+        records.addAll(r.records);
+      }
+      onDone(key, records, createServiceUserNotes(project, updates, windowMs, true), windowMs);
+    }
+
+    @Override
+    public Project.NameKey getProjectNameKey() {
+      return project;
+    }
+
+    @Override
+    public String getRemoteName() {
+      return null;
+    }
+
+    @Override
+    public boolean hasCustomizedPrint() {
+      return true;
+    }
+
+    @Override
+    public String toString() {
+      return "create-service-user-notes";
     }
   }
 }
@@ -20,38 +20,31 @@ import com.google.common.collect.Lists;
 import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.extensions.api.access.PluginPermission;
 import com.google.gerrit.extensions.client.MenuItem;
-import com.google.gerrit.extensions.restapi.AuthException;
-import com.google.gerrit.extensions.restapi.RestApiException;
 import com.google.gerrit.extensions.webui.TopMenu;
 import com.google.gerrit.server.CurrentUser;
 import com.google.gerrit.server.IdentifiedUser;
-import com.google.gerrit.server.config.ConfigResource;
 import com.google.gerrit.server.permissions.PermissionBackend;
-import com.google.gerrit.server.permissions.PermissionBackendException;
-import com.google.gwtorm.server.OrmException;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
-import java.io.IOException;
+import com.googlesource.gerrit.plugins.serviceuser.ServiceUserRegistry.Snapshot;
 import java.util.List;
-import org.eclipse.jgit.errors.ConfigInvalidException;
 
 class ServiceUserMenu implements TopMenu {
   private final String pluginName;
   private final Provider<CurrentUser> userProvider;
   private final List<MenuEntry> menuEntries;
-  private final Provider<ListServiceUsers> listServiceUsers;
+  private final ServiceUserRegistry registry;
   private final PermissionBackend permissionBackend;
 
   @Inject
   ServiceUserMenu(
       @PluginName String pluginName,
       Provider<CurrentUser> userProvider,
-      Provider<ListServiceUsers> listServiceUsers,
-      PermissionBackend permissionBackend)
-      throws IOException, PermissionBackendException, ConfigInvalidException, RestApiException {
+      ServiceUserRegistry registry,
+      PermissionBackend permissionBackend) {
     this.pluginName = pluginName;
     this.userProvider = userProvider;
-    this.listServiceUsers = listServiceUsers;
+    this.registry = registry;
     menuEntries = Lists.newArrayList();
     this.permissionBackend = permissionBackend;
 
@@ -78,13 +71,18 @@ class ServiceUserMenu implements TopMenu {
     return false;
   }
 
-  private boolean hasServiceUser()
-      throws PermissionBackendException, IOException, ConfigInvalidException, RestApiException {
-    try {
-      return !listServiceUsers.get().apply(new ConfigResource()).isEmpty();
-    } catch (AuthException | OrmException e) {
+  /**
+   * Whether the current user can see any service user, i.e. owns one through a group or created
+   * one that has no owner group. Administrators can create service users and are not checked.
+   */
+  private boolean hasServiceUser() {
+    if (!userProvider.get().isIdentifiedUser()) {
       return false;
     }
+    IdentifiedUser user = userProvider.get().asIdentifiedUser();
+    Snapshot snapshot = registry.get();
+    return snapshot.hasUnownedServiceUser(user.getAccountId())
+        || user.getEffectiveGroups().containsAnyOf(snapshot.getOwners());
   }
 
   @Override
@@ -0,0 +1,85 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.serviceuser;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+
+import com.google.gerrit.extensions.annotations.PluginData;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Projects that received commits of service users.
+ *
+ * <p>A project is recorded when a commit of a service user is validated for it or when a note is
+ * created for a commit of a service user in it. The project names are kept in the {@code
+ * projects.list} file in the data directory of the plugin, one per line, so that the set survives
+ * restarts. Projects are never removed.
+ */
+@Singleton
+class ServiceUserProjects {
+  private static final Logger log = LoggerFactory.getLogger(ServiceUserProjects.class);
+
+  private final Path file;
+  private final Set<String> projects = ConcurrentHashMap.newKeySet();
+
+  @Inject
+  ServiceUserProjects(@PluginData Path pluginData) {
+    this.file = pluginData.resolve("projects.list");
+    try {
+      if (Files.exists(file)) {
+        for (String line : Files.readAllLines(file, UTF_8)) {
+          if (!line.isEmpty()) {
+            projects.add(line);
+          }
+        }
+      }
+    } catch (IOException e) {
+      log.error(String.format("Cannot read %s", file), e);
+    }
+  }
+
+  /** Whether the project may contain commits of service users. */
+  boolean contains(Project.NameKey project) {
+    return projects.contains(project.get());
+  }
+
+  /** Records that the project received commits of a service user. */
+  void add(Project.NameKey project) {
+    if (projects.contains(project.get())) {
+      return;
+    }
+    synchronized (this) {
+      if (projects.add(project.get())) {
+        try {
+          Files.write(file, Collections.singletonList(project.get()), UTF_8, CREATE, APPEND);
+        } catch (IOException e) {
+          log.error(String.format("Cannot write to %s", file), e);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,283 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.serviceuser;
+
+import static com.googlesource.gerrit.plugins.serviceuser.CreateServiceUser.KEY_CREATED_AT;
+import static com.googlesource.gerrit.plugins.serviceuser.CreateServiceUser.KEY_CREATED_BY;
+import static com.googlesource.gerrit.plugins.serviceuser.CreateServiceUser.KEY_CREATOR_ID;
+import static com.googlesource.gerrit.plugins.serviceuser.CreateServiceUser.KEY_OWNER;
+import static com.googlesource.gerrit.plugins.serviceuser.CreateServiceUser.USER;
+
+import com.google.common.collect.ImmutableCollection;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.AccountGroup;
+import com.google.gerrit.server.account.AccountCache;
+import com.google.gerrit.server.account.AccountState;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.server.project.ProjectLevelConfig;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * In-memory view of the service users that are stored in the {@code serviceuser.db} file in the
+ * {@code refs/meta/config} branch of the {@code All-Projects} project.
+ *
+ * <p>The registry holds an immutable {@link Snapshot} that is rebuilt whenever the revision from
+ * which the {@code serviceuser.db} file was loaded changes, so that lookups don't need to scan the
+ * subsections of the underlying Git config.
+ */
+@Singleton
+class ServiceUserRegistry {
+  private final String pluginName;
+  private final ProjectCache projectCache;
+  private final AccountCache accountCache;
+  private final NonServiceUserCache nonServiceUsers;
+
+  private volatile Snapshot snapshot;
+
+  @Inject
+  ServiceUserRegistry(
+      @PluginName String pluginName,
+      ProjectCache projectCache,
+      AccountCache accountCache,
+      NonServiceUserCache nonServiceUsers) {
+    this.pluginName = pluginName;
+    this.projectCache = projectCache;
+    this.accountCache = accountCache;
+    this.nonServiceUsers = nonServiceUsers;
+  }
+
+  /** Returns the snapshot for the current revision of the {@code serviceuser.db} file. */
+  Snapshot get() {
+    ProjectLevelConfig storage = projectCache.getAllProjects().getConfig(pluginName + ".db");
+    ObjectId revision = storage.getRevision();
+    Snapshot s = snapshot;
+    if (s != null && s.storage == storage && Objects.equals(s.revision, revision)) {
+      return s;
+    }
+    synchronized (this) {
+      s = snapshot;
+      if (s == null || s.storage != storage || !Objects.equals(s.revision, revision)) {
+        s = load(storage, revision);
+        snapshot = s;
+        // emails may belong to service users that were added by another revision
+        nonServiceUsers.invalidateAll();
+      }
+      return s;
+    }
+  }
+
+  /** Drops the current snapshot so that the next lookup reloads it from storage. */
+  void invalidate() {
+    snapshot = null;
+  }
+
+  private Snapshot load(ProjectLevelConfig storage, ObjectId revision) {
+    Config db = storage.get();
+    ImmutableSortedMap.Builder<String, Entry> byUsername = ImmutableSortedMap.naturalOrder();
+    Map<Account.Id, Entry> byAccountId = new HashMap<>();
+    for (String username : db.getSubsections(USER)) {
+      Optional<AccountState> account = accountCache.getByUsername(username);
+      Entry e =
+          new Entry(
+              username,
+              account.isPresent() ? account.get().getAccount().getId() : null,
+              new Account.Id(db.getInt(USER, username, KEY_CREATOR_ID, -1)),
+              db.getString(USER, username, KEY_CREATED_BY),
+              db.getString(USER, username, KEY_CREATED_AT),
+              db.getString(USER, username, KEY_OWNER));
+      byUsername.put(username, e);
+      if (e.getAccountId() != null) {
+        byAccountId.put(e.getAccountId(), e);
+      }
+    }
+    int[] accountIds = new int[byAccountId.size()];
+    int i = 0;
+    for (Account.Id id : byAccountId.keySet()) {
+      accountIds[i++] = id.get();
+    }
+    Arrays.sort(accountIds);
+
+    ImmutableSortedMap<String, Entry> sorted = byUsername.build();
+    ImmutableListMultimap.Builder<Account.Id, Entry> byCreator = ImmutableListMultimap.builder();
+    ImmutableListMultimap.Builder<AccountGroup.UUID, Entry> byOwner =
+        ImmutableListMultimap.builder();
+    ImmutableSet.Builder<Account.Id> creatorsOfUnowned = ImmutableSet.builder();
+    for (Entry e : sorted.values()) {
+      byCreator.put(e.getCreatorId(), e);
+      if (e.getOwner() != null) {
+        byOwner.put(new AccountGroup.UUID(e.getOwner()), e);
+      } else {
+        creatorsOfUnowned.add(e.getCreatorId());
+      }
+    }
+    return new Snapshot(
+        storage,
+        revision,
+        sorted,
+        ImmutableMap.copyOf(byAccountId),
+        accountIds,
+        byCreator.build(),
+        byOwner.build(),
+        creatorsOfUnowned.build());
+  }
+
+  /** Immutable set of service users as of one revision of the {@code serviceuser.db} file. */
+  static class Snapshot {
+    private final ProjectLevelConfig storage;
+    private final ObjectId revision;
+    private final ImmutableSortedMap<String, Entry> byUsername;
+    private final ImmutableMap<Account.Id, Entry> byAccountId;
+    private final int[] accountIds;
+    private final ImmutableListMultimap<Account.Id, Entry> byCreator;
+    private final ImmutableListMultimap<AccountGroup.UUID, Entry> byOwner;
+    private final ImmutableSet<Account.Id> creatorsOfUnowned;
+
+    private Snapshot(
+        ProjectLevelConfig storage,
+        ObjectId revision,
+        ImmutableSortedMap<String, Entry> byUsername,
+        ImmutableMap<Account.Id, Entry> byAccountId,
+        int[] accountIds,
+        ImmutableListMultimap<Account.Id, Entry> byCreator,
+        ImmutableListMultimap<AccountGroup.UUID, Entry> byOwner,
+        ImmutableSet<Account.Id> creatorsOfUnowned) {
+      this.storage = storage;
+      this.revision = revision;
+      this.byUsername = byUsername;
+      this.byAccountId = byAccountId;
+      this.accountIds = accountIds;
+      this.byCreator = byCreator;
+      this.byOwner = byOwner;
+      this.creatorsOfUnowned = creatorsOfUnowned;
+    }
+
+    ObjectId getRevision() {
+      return revision;
+    }
+
+    Entry get(String username) {
+      return byUsername.get(username);
+    }
+
+    Entry get(Account.Id accountId) {
+      return byAccountId.get(accountId);
+    }
+
+    boolean contains(String username) {
+      return byUsername.containsKey(username);
+    }
+
+    /** Checks against the sorted array of service user account IDs without boxing. */
+    boolean isServiceUser(int accountId) {
+      return Arrays.binarySearch(accountIds, accountId) >= 0;
+    }
+
+    /** Returns all service users, sorted by username. */
+    ImmutableCollection<Entry> all() {
+      return byUsername.values();
+    }
+
+    /** Returns the service users whose username starts with the prefix, sorted by username. */
+    ImmutableCollection<Entry> getByPrefix(String prefix) {
+      // usernames cannot contain this character, hence it is larger than any suffix
+      return byUsername.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values();
+    }
+
+    /** Returns the service users created by the account, sorted by username. */
+    ImmutableList<Entry> getByCreator(Account.Id creatorId) {
+      return byCreator.get(creatorId);
+    }
+
+    /** Returns the service users owned by the group, sorted by username. */
+    ImmutableList<Entry> getByOwner(AccountGroup.UUID owner) {
+      return byOwner.get(owner);
+    }
+
+    /** Returns the groups that own at least one service user. */
+    ImmutableSet<AccountGroup.UUID> getOwners() {
+      return byOwner.keySet();
+    }
+
+    /** Whether the account created a service user that has no owner group. */
+    boolean hasUnownedServiceUser(Account.Id creatorId) {
+      return creatorsOfUnowned.contains(creatorId);
+    }
+  }
+
+  /** Properties of a single service user as stored in the {@code serviceuser.db} file. */
+  static class Entry {
+    private final String username;
+    private final Account.Id accountId;
+    private final Account.Id creatorId;
+    private final String createdBy;
+    private final String createdAt;
+    private final String owner;
+
+    private Entry(
+        String username,
+        Account.Id accountId,
+        Account.Id creatorId,
+        String createdBy,
+        String createdAt,
+        String owner) {
+      this.username = username;
+      this.accountId = accountId;
+      this.creatorId = creatorId;
+      this.createdBy = createdBy;
+      this.createdAt = createdAt;
+      this.owner = owner;
+    }
+
+    String getUsername() {
+      return username;
+    }
+
+    /** Returns the account ID, {@code null} if no account exists for the username. */
+    Account.Id getAccountId() {
+      return accountId;
+    }
+
+    Account.Id getCreatorId() {
+      return creatorId;
+    }
+
+    String getCreatedBy() {
+      return createdBy;
+    }
+
+    String getCreatedAt() {
+      return createdAt;
+    }
+
+    /** Returns the owner group as stored in the database, {@code null} if not set. */
+    String getOwner() {
+      return owner;
+    }
+  }
+}
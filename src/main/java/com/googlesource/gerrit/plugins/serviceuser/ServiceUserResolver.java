@@ -14,181 +14,121 @@
 
 package com.googlesource.gerrit.plugins.serviceuser;
 
+import static java.util.Comparator.comparing;
+import static java.util.Comparator.naturalOrder;
+import static java.util.Comparator.nullsFirst;
+
 import com.google.gerrit.common.data.GroupDescription;
 import com.google.gerrit.extensions.common.AccountInfo;
-import com.google.gerrit.extensions.restapi.MethodNotAllowedException;
-import com.google.gerrit.extensions.restapi.ResourceNotFoundException;
-import com.google.gerrit.extensions.restapi.RestApiException;
 import com.google.gerrit.reviewdb.client.Account;
-import com.google.gerrit.reviewdb.client.AccountGroup;
-import com.google.gerrit.reviewdb.server.ReviewDb;
-import com.google.gerrit.server.CurrentUser;
-import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.account.AccountCache;
-import com.google.gerrit.server.account.AccountResolver;
 import com.google.gerrit.server.account.AccountState;
-import com.google.gerrit.server.account.GroupControl;
-import com.google.gerrit.server.account.GroupMembership;
+import com.google.gerrit.server.account.externalids.ExternalId;
+import com.google.gerrit.server.account.externalids.ExternalIds;
 import com.google.gerrit.server.group.GroupResolver;
-import com.google.gerrit.server.group.GroupResource;
-import com.google.gerrit.server.permissions.PermissionBackendException;
-import com.google.gerrit.server.restapi.group.ListMembers;
-import com.google.gerrit.server.util.RequestContext;
-import com.google.gerrit.server.util.ThreadLocalRequestContext;
-import com.google.gwtorm.server.OrmException;
-import com.google.gwtorm.server.SchemaFactory;
 import com.google.inject.Inject;
-import com.google.inject.Provider;
 import com.google.inject.Singleton;
-import com.googlesource.gerrit.plugins.serviceuser.GetServiceUser.ServiceUserInfo;
+import com.googlesource.gerrit.plugins.serviceuser.ServiceUserRegistry.Entry;
+import com.googlesource.gerrit.plugins.serviceuser.ServiceUserRegistry.Snapshot;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
-import java.util.Set;
-import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.eclipse.jgit.lib.PersonIdent;
 
 @Singleton
 class ServiceUserResolver {
-  private final AccountResolver resolver;
-  private final IdentifiedUser.GenericFactory genericUserFactory;
-  private final Provider<GetServiceUser> getServiceUser;
-  private final Provider<ListMembers> listMembers;
-  private final SchemaFactory<ReviewDb> schema;
-  private final ThreadLocalRequestContext tl;
+  private final ExternalIds externalIds;
+  private final ServiceUserRegistry registry;
+  private final NonServiceUserCache nonServiceUsers;
+  private final OwnerCache ownerCache;
   private final AccountCache accountCache;
-  private final GroupControl.Factory groupControlFactory;
   private final GroupResolver groupResolver;
 
   @Inject
   ServiceUserResolver(
-      AccountResolver resolver,
-      IdentifiedUser.GenericFactory genericUserFactory,
-      Provider<GetServiceUser> getServiceUser,
-      Provider<ListMembers> listMembers,
-      SchemaFactory<ReviewDb> schema,
-      ThreadLocalRequestContext tl,
+      ExternalIds externalIds,
+      ServiceUserRegistry registry,
+      NonServiceUserCache nonServiceUsers,
+      OwnerCache ownerCache,
       AccountCache accountCache,
-      GroupControl.Factory groupControlFactory,
       GroupResolver groupResolver) {
-    this.resolver = resolver;
-    this.genericUserFactory = genericUserFactory;
-    this.getServiceUser = getServiceUser;
-    this.listMembers = listMembers;
-    this.schema = schema;
-    this.tl = tl;
+    this.externalIds = externalIds;
+    this.registry = registry;
+    this.nonServiceUsers = nonServiceUsers;
+    this.ownerCache = ownerCache;
     this.accountCache = accountCache;
-    this.groupControlFactory = groupControlFactory;
     this.groupResolver = groupResolver;
   }
 
-  ServiceUserInfo getAsServiceUser(PersonIdent committerIdent)
-      throws ConfigInvalidException, IOException, OrmException, PermissionBackendException,
-          RestApiException {
-    StringBuilder committer = new StringBuilder();
-    committer.append(committerIdent.getName());
-    committer.append(" <");
-    committer.append(committerIdent.getEmailAddress());
-    committer.append("> ");
-
-    Account account = resolver.find(committer.toString());
-    if (account == null) {
+  /**
+   * Resolves the committer email to a service user.
+   *
+   * <p>The email is mapped to account IDs through the external IDs, which are then checked against
+   * the service user account IDs of the registry.
+   *
+   * @return the service user, {@code null} if the email doesn't belong to exactly one service user
+   */
+  Entry getAsServiceUser(PersonIdent committerIdent) throws IOException {
+    String email = committerIdent.getEmailAddress();
+    if (email == null || email.isEmpty() || nonServiceUsers.contains(email)) {
       return null;
     }
-    try {
-      return getServiceUser
-          .get()
-          .apply(new ServiceUserResource(genericUserFactory.create(account.getId())));
-    } catch (ResourceNotFoundException e) {
-      return null;
+
+    Snapshot snapshot = registry.get();
+    Entry serviceUser = null;
+    for (ExternalId extId : externalIds.byEmail(email)) {
+      if (snapshot.isServiceUser(extId.accountId().get())) {
+        Entry e = snapshot.get(extId.accountId());
+        if (serviceUser != null && serviceUser != e) {
+          return null;
+        }
+        serviceUser = e;
+      }
     }
+    if (serviceUser == null) {
+      nonServiceUsers.put(email);
+    }
+    return serviceUser;
+  }
+
+  AccountInfo getCreator(Entry serviceUser) {
+    return toAccountInfo(serviceUser.getCreatorId());
   }
 
-  List<AccountInfo> listOwners(ServiceUserInfo serviceUser)
-      throws OrmException, MethodNotAllowedException, PermissionBackendException {
-    if (serviceUser.owner == null) {
+  /**
+   * Returns the active accounts that are direct or indirect members of the owner group of the
+   * service user, sorted by name, email and account ID like the members that are listed by the
+   * REST API, so that the notes don't change if the members stay the same.
+   */
+  List<AccountInfo> listActiveOwners(Entry serviceUser) {
+    if (serviceUser.getOwner() == null) {
       return Collections.emptyList();
     }
-
-    try (ReviewDb db = schema.open()) {
-      RequestContext context =
-          new RequestContext() {
-            @Override
-            public CurrentUser getUser() {
-              return new CurrentUser() {
-
-                @Override
-                public GroupMembership getEffectiveGroups() {
-                  return new GroupMembership() {
-                    @Override
-                    public Set<AccountGroup.UUID> intersection(
-                        Iterable<AccountGroup.UUID> groupIds) {
-                      return null;
-                    }
-
-                    @Override
-                    public Set<AccountGroup.UUID> getKnownGroups() {
-                      return null;
-                    }
-
-                    @Override
-                    public boolean containsAnyOf(Iterable<AccountGroup.UUID> groupIds) {
-                      return true;
-                    }
-
-                    @Override
-                    public boolean contains(AccountGroup.UUID groupId) {
-                      return true;
-                    }
-                  };
-                }
-
-                @Override
-                public Object getCacheKey() {
-                  return null;
-                }
-              };
-            }
-
-            @Override
-            public Provider<ReviewDb> getReviewDbProvider() {
-              return new Provider<ReviewDb>() {
-                @Override
-                public ReviewDb get() {
-                  return db;
-                }
-              };
-            }
-          };
-      RequestContext old = tl.setContext(context);
-      try {
-        GroupDescription.Basic group = groupResolver.parseId(serviceUser.owner.id);
-        GroupControl ctl = groupControlFactory.controlFor(group);
-        ListMembers lm = listMembers.get();
-        GroupResource rsrc = new GroupResource(ctl);
-        lm.setRecursive(true);
-        List<AccountInfo> owners = new ArrayList<>();
-        for (AccountInfo a : lm.apply(rsrc)) {
-          owners.add(a);
-        }
-        return owners;
-      } finally {
-        tl.setContext(old);
-      }
+    GroupDescription.Basic group = groupResolver.parseId(serviceUser.getOwner());
+    if (group == null) {
+      return Collections.emptyList();
     }
-  }
 
-  List<AccountInfo> listActiveOwners(ServiceUserInfo serviceUser)
-      throws OrmException, MethodNotAllowedException, PermissionBackendException {
     List<AccountInfo> activeOwners = new ArrayList<>();
-    for (AccountInfo owner : listOwners(serviceUser)) {
-      Optional<AccountState> accountState = accountCache.get(new Account.Id(owner._accountId));
-      if (accountState.isPresent() && accountState.get().getAccount().isActive()) {
-        activeOwners.add(owner);
-      }
+    for (Account.Id id : ownerCache.getActiveMembers(group.getGroupUUID())) {
+      activeOwners.add(toAccountInfo(id));
     }
+    activeOwners.sort(
+        comparing((AccountInfo a) -> a.name, nullsFirst(naturalOrder()))
+            .thenComparing(a -> a.email, nullsFirst(naturalOrder()))
+            .thenComparing(a -> a._accountId, nullsFirst(naturalOrder())));
     return activeOwners;
   }
+
+  private AccountInfo toAccountInfo(Account.Id id) {
+    AccountInfo info = new AccountInfo(id.get());
+    Optional<AccountState> account = accountCache.get(id);
+    if (account.isPresent()) {
+      info.name = account.get().getAccount().getFullName();
+      info.email = account.get().getAccount().getPreferredEmail();
+    }
+    return info;
+  }
 }
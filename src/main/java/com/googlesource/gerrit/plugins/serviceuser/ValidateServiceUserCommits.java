@@ -14,74 +14,100 @@
 
 package com.googlesource.gerrit.plugins.serviceuser;
 
-import com.google.gerrit.extensions.restapi.RestApiException;
-import com.google.gerrit.reviewdb.client.Account;
-import com.google.gerrit.server.account.AccountCache;
-import com.google.gerrit.server.account.AccountState;
+import com.google.common.base.Strings;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.server.events.CommitReceivedEvent;
 import com.google.gerrit.server.git.validators.CommitValidationException;
 import com.google.gerrit.server.git.validators.CommitValidationListener;
 import com.google.gerrit.server.git.validators.CommitValidationMessage;
-import com.google.gerrit.server.permissions.PermissionBackendException;
-import com.google.gwtorm.server.OrmException;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
-import com.googlesource.gerrit.plugins.serviceuser.GetServiceUser.ServiceUserInfo;
+import com.googlesource.gerrit.plugins.serviceuser.ServiceUserRegistry.Entry;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import org.eclipse.jgit.errors.ConfigInvalidException;
+import java.util.concurrent.ConcurrentHashMap;
 import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.transport.ReceiveCommand;
 
 @Singleton
 class ValidateServiceUserCommits implements CommitValidationListener {
   private final ServiceUserResolver serviceUserResolver;
-  private final AccountCache accountCache;
+  private final PushEligibility pushEligibility;
+  private final ServiceUserProjects serviceUserProjects;
+
+  /**
+   * Validation results by committer email for each receive command that is currently processed.
+   * Commits of one push typically share very few committers, so they are only resolved once per
+   * push. The entries go away together with the receive command.
+   */
+  private final LoadingCache<ReceiveCommand, Map<String, Optional<String>>> resultsByCommand =
+      CacheBuilder.newBuilder()
+          .weakKeys()
+          .build(
+              new CacheLoader<ReceiveCommand, Map<String, Optional<String>>>() {
+                @Override
+                public Map<String, Optional<String>> load(ReceiveCommand cmd) {
+                  return new ConcurrentHashMap<>();
+                }
+              });
 
   @Inject
-  ValidateServiceUserCommits(ServiceUserResolver serviceUserResolver, AccountCache accountCache) {
+  ValidateServiceUserCommits(
+      ServiceUserResolver serviceUserResolver,
+      PushEligibility pushEligibility,
+      ServiceUserProjects serviceUserProjects) {
     this.serviceUserResolver = serviceUserResolver;
-    this.accountCache = accountCache;
+    this.pushEligibility = pushEligibility;
+    this.serviceUserProjects = serviceUserProjects;
   }
 
   @Override
   public List<CommitValidationMessage> onCommitReceived(CommitReceivedEvent receiveEvent)
       throws CommitValidationException {
+    PersonIdent committer = receiveEvent.commit.getCommitterIdent();
+    Project.NameKey project = receiveEvent.project.getNameKey();
+    Optional<String> rejectReason;
     try {
-      PersonIdent committer = receiveEvent.commit.getCommitterIdent();
-      ServiceUserInfo serviceUser = serviceUserResolver.getAsServiceUser(committer);
-      if (serviceUser != null) {
-        if (serviceUser.owner != null
-            && serviceUserResolver.listActiveOwners(serviceUser).isEmpty()) {
-          throw new CommitValidationException(
-              String.format(
-                  "Commit %s of service user %s (%s) is rejected because "
-                      + "all service user owner accounts are inactive.",
-                  receiveEvent.commit.getId().getName(),
-                  committer.getName(),
-                  committer.getEmailAddress()));
-        }
-        Optional<AccountState> creator =
-            accountCache.get(new Account.Id(serviceUser.createdBy._accountId));
-        if (!creator.isPresent() || !creator.get().getAccount().isActive()) {
-          throw new CommitValidationException(
-              String.format(
-                  "Commit %s of service user %s (%s) is rejected because "
-                      + "the account of the service creator is inactive.",
-                  receiveEvent.commit.getId().getName(),
-                  committer.getName(),
-                  committer.getEmailAddress()));
+      if (receiveEvent.command != null) {
+        Map<String, Optional<String>> results = resultsByCommand.getUnchecked(receiveEvent.command);
+        String email = Strings.nullToEmpty(committer.getEmailAddress());
+        rejectReason = results.get(email);
+        if (rejectReason == null) {
+          rejectReason = validate(project, committer);
+          results.put(email, rejectReason);
         }
+      } else {
+        rejectReason = validate(project, committer);
       }
-    } catch (IOException
-        | OrmException
-        | ConfigInvalidException
-        | PermissionBackendException
-        | RestApiException e) {
+    } catch (IOException e) {
       throw new CommitValidationException(
           "Internal error while checking for service user commits.", e);
     }
+    if (rejectReason.isPresent()) {
+      throw new CommitValidationException(
+          String.format(
+              "Commit %s of service user %s (%s) is rejected because %s.",
+              receiveEvent.commit.getId().getName(),
+              committer.getName(),
+              committer.getEmailAddress(),
+              rejectReason.get()));
+    }
     return Collections.emptyList();
   }
+
+  private Optional<String> validate(Project.NameKey project, PersonIdent committer)
+      throws IOException {
+    Entry serviceUser = serviceUserResolver.getAsServiceUser(committer);
+    if (serviceUser == null) {
+      return Optional.empty();
+    }
+    serviceUserProjects.add(project);
+    return pushEligibility.check(serviceUser);
+  }
 }
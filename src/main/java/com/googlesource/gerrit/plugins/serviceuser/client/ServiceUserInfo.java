@@ -43,5 +43,7 @@ public class ServiceUserInfo extends JavaScriptObject {
 
   public final native GroupInfo owner() /*-{ return this.owner; }-*/;
 
+  public final native boolean more() /*-{ return this._more_service_users ? true : false; }-*/;
+
   protected ServiceUserInfo() {}
 }
@@ -18,14 +18,20 @@ import com.google.gerrit.client.rpc.NativeMap;
 import com.google.gerrit.plugin.client.Plugin;
 import com.google.gerrit.plugin.client.rpc.RestApi;
 import com.google.gerrit.plugin.client.screen.Screen;
+import com.google.gwt.event.dom.client.ClickEvent;
+import com.google.gwt.event.dom.client.ClickHandler;
 import com.google.gwt.user.client.rpc.AsyncCallback;
 import com.google.gwt.user.client.ui.Anchor;
+import com.google.gwt.user.client.ui.Button;
 import com.google.gwt.user.client.ui.FlexTable;
 import com.google.gwt.user.client.ui.FlexTable.FlexCellFormatter;
 import com.google.gwt.user.client.ui.InlineHyperlink;
 import com.google.gwt.user.client.ui.VerticalPanel;
 
 public class ServiceUserListScreen extends VerticalPanel {
+  private static final int PAGE_SIZE = 100;
+  private static final int COLUMNS = 7;
+
   static class Factory implements Screen.EntryPoint {
     @Override
     public void onLoad(Screen screen) {
@@ -34,34 +40,61 @@ public class ServiceUserListScreen extends VerticalPanel {
     }
   }
 
+  private final FlexTable t;
+  private final Button more;
+  private int row = 1;
+  private String last;
+
   ServiceUserListScreen() {
     setStyleName("serviceuser-panel");
 
-    new RestApi("config")
-        .id("server")
-        .view(Plugin.get().getPluginName(), "serviceusers")
-        .get(
-            NativeMap.copyKeysIntoChildren(
-                "username",
-                new AsyncCallback<NativeMap<ServiceUserInfo>>() {
-                  @Override
-                  public void onSuccess(NativeMap<ServiceUserInfo> info) {
-                    display(info);
-                  }
-
-                  @Override
-                  public void onFailure(Throwable caught) {
-                    // never invoked
-                  }
-                }));
+    t = createTable();
+    add(t);
+    more = new Button("More");
+    more.setVisible(false);
+    more.addClickHandler(
+        new ClickHandler() {
+          @Override
+          public void onClick(ClickEvent event) {
+            more.setEnabled(false);
+            load();
+          }
+        });
+    add(more);
+    load();
   }
 
-  private void display(NativeMap<ServiceUserInfo> info) {
-    int columns = 7;
+  /** Loads the next page of service users, which starts after the last displayed username. */
+  private void load() {
+    RestApi api =
+        new RestApi("config")
+            .id("server")
+            .view(Plugin.get().getPluginName(), "serviceusers")
+            .addParameter("n", Integer.toString(PAGE_SIZE));
+    if (last != null) {
+      api.addParameter("after", last);
+    }
+    api.get(
+        NativeMap.copyKeysIntoChildren(
+            "username",
+            new AsyncCallback<NativeMap<ServiceUserInfo>>() {
+              @Override
+              public void onSuccess(NativeMap<ServiceUserInfo> info) {
+                display(info);
+              }
+
+              @Override
+              public void onFailure(Throwable caught) {
+                // never invoked
+              }
+            }));
+  }
+
+  private static FlexTable createTable() {
     FlexTable t = new FlexTable();
     t.setStyleName("serviceuser-serviceUserTable");
     FlexCellFormatter fmt = t.getFlexCellFormatter();
-    for (int c = 0; c < columns; c++) {
+    for (int c = 0; c < COLUMNS; c++) {
       fmt.addStyleName(0, c, "dataHeader");
       fmt.addStyleName(0, c, "topMostCell");
     }
@@ -74,12 +107,21 @@ public class ServiceUserListScreen extends VerticalPanel {
     t.setText(0, 4, "Created By");
     t.setText(0, 5, "Created At");
     t.setText(0, 6, "Account State");
+    return t;
+  }
 
-    int row = 1;
+  private void display(NativeMap<ServiceUserInfo> info) {
+    FlexCellFormatter fmt = t.getFlexCellFormatter();
+    boolean hasMore = false;
     for (String username : info.keySet()) {
       ServiceUserInfo a = info.get(username);
+      if (a.more()) {
+        // only the last service user of the page is flagged
+        hasMore = true;
+        last = username;
+      }
 
-      for (int c = 0; c < columns; c++) {
+      for (int c = 0; c < COLUMNS; c++) {
         fmt.addStyleName(row, c, "dataCell");
         fmt.addStyleName(row, 0, "leftMostCell");
       }
@@ -105,6 +147,7 @@ public class ServiceUserListScreen extends VerticalPanel {
       row++;
     }
 
-    add(t);
+    more.setVisible(hasMore);
+    more.setEnabled(true);
   }
 }